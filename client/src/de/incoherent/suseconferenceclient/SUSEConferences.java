@@ -11,10 +11,19 @@
 
 package de.incoherent.suseconferenceclient;
 
+import java.io.File;
+import java.io.IOException;
+
 import de.incoherent.suseconferenceclient.app.Database;
+import de.incoherent.suseconferenceclient.app.QueryStats;
+import de.incoherent.suseconferenceclient.app.ScheduleSyncService;
 import android.app.Application;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.util.Log;
 
 /*
@@ -39,8 +48,41 @@ public class SUSEConferences extends Application {
 	    super.onCreate();
 	    mDb = Database.getInstance(this);
 	    mDb.open();
+	    ScheduleSyncService.schedule(this);
+	    if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0)
+	    	registerReceiver(mQueryStatsReceiver, new IntentFilter(QUERY_STATS_ACTION));
     }
     
+    // Debug builds only: controls the database query stats, e.g.
+    //   adb shell am broadcast -a de.incoherent.suseconferenceclient.QUERY_STATS --es command dump
+    // where the command is one of enable, disable, reset or dump.  dump
+    // writes to logcat and to query_stats.txt in the app's external files directory.
+    private static final String QUERY_STATS_ACTION = "de.incoherent.suseconferenceclient.QUERY_STATS";
+    private final BroadcastReceiver mQueryStatsReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			String command = intent.getStringExtra("command");
+			if ("enable".equals(command)) {
+				QueryStats.setEnabled(true);
+			} else if ("disable".equals(command)) {
+				QueryStats.setEnabled(false);
+			} else if ("reset".equals(command)) {
+				QueryStats.reset();
+			} else if ("dump".equals(command)) {
+				QueryStats.dumpToLog();
+				File dir = context.getExternalFilesDir(null);
+				if (dir != null) {
+					try {
+						QueryStats.dumpToFile(new File(dir, "query_stats.txt"));
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			Log.d("SUSEConferences", "Query stats: " + command);
+		}
+    };
+    
     public static Database getDatabase() {
         return mDb;
     }
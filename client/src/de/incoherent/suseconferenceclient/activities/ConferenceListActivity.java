@@ -13,6 +13,7 @@ package de.incoherent.suseconferenceclient.activities;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import de.incoherent.suseconferenceclient.Config;
 import de.incoherent.suseconferenceclient.R;
@@ -24,7 +25,6 @@ import de.incoherent.suseconferenceclient.tasks.CacheConferenceTask.CacheConfere
 import de.incoherent.suseconferenceclient.tasks.GetConferencesTask;
 import de.incoherent.suseconferenceclient.tasks.GetConferencesTask.ConferenceListListener;
 import android.app.Activity;
-import android.app.ProgressDialog;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
@@ -38,7 +38,7 @@ import android.widget.RadioGroup;
 public class ConferenceListActivity extends Activity implements OnClickListener, ConferenceListListener, CacheConferenceTaskListener {
 	private long mActiveId = -1;
 	private RadioGroup mConferenceGroup;
-	private ProgressDialog mDialog = null;
+	private Button mRefreshButton;
 	
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -48,12 +48,37 @@ public class ConferenceListActivity extends Activity implements OnClickListener,
 		mActiveId = settings.getLong("active_conference", -1);
 		Log.d("SUSEConferences", "Active ID: " + mActiveId);
 		mConferenceGroup = (RadioGroup) findViewById(R.id.conferencesGroup);
-		showConferences();
+		loadStoredConferences();
 
 		Button okButton = (Button) findViewById(R.id.okButton);
 		okButton.setOnClickListener(this);
-		Button refreshButton = (Button) findViewById(R.id.refreshButton);
-		refreshButton.setOnClickListener(this);
+		mRefreshButton = (Button) findViewById(R.id.refreshButton);
+		mRefreshButton.setOnClickListener(this);
+		// Show what's stored now, and add anything new once the list is in
+		refresh();
+    }
+    
+    private void loadStoredConferences() {
+		final Database db = SUSEConferences.getDatabase();
+		db.read(new Callable<List<Conference>>() {
+			@Override
+			public List<Conference> call() {
+				return db.getConferenceList();
+			}
+		}, new Database.ResultListener<List<Conference>>() {
+			@Override
+			public void onResult(List<Conference> conferences) {
+				// The refresh may have got here first
+				if (conferences != null && !isFinishing() && mConferenceGroup.getChildCount() == 0)
+					showConferences(conferences);
+			}
+		});
+    }
+    
+    private void refresh() {
+		mRefreshButton.setEnabled(false);
+		GetConferencesTask task = new GetConferencesTask(Config.BASE_URL, this);
+		task.execute();
     }
     
     @Override
@@ -64,13 +89,14 @@ public class ConferenceListActivity extends Activity implements OnClickListener,
         finish();
     }
     
-    private void showConferences() {
+    private void showConferences(List<Conference> conferenceList) {
 		mConferenceGroup = (RadioGroup) findViewById(R.id.conferencesGroup);
+		// Keep the user's choice when the list is refreshed under them
+		long checkedId = mConferenceGroup.getCheckedRadioButtonId();
+		if (checkedId == -1)
+			checkedId = mActiveId;
 		mConferenceGroup.clearCheck();
 		mConferenceGroup.removeAllViews();
-		
-        Database db = SUSEConferences.getDatabase();
-		List<Conference> conferenceList = db.getConferenceList();
 
 		for (Conference conference : conferenceList) {
 			RadioButton newButton = new RadioButton(this);
@@ -84,7 +110,7 @@ public class ConferenceListActivity extends Activity implements OnClickListener,
 			newButton.setText(text);
 			mConferenceGroup.addView(newButton);
 			Log.d("SUSEConferences", "ActiveId: " + mActiveId + " sqlId: " + conference.getSqlId());
-			if (mActiveId == conference.getSqlId())
+			if (checkedId == conference.getSqlId())
 				newButton.setChecked(true);
 		}
     }
@@ -113,18 +139,16 @@ public class ConferenceListActivity extends Activity implements OnClickListener,
 				}
 			}
 		} else if (v.getId() == R.id.refreshButton) {
-			mDialog = ProgressDialog.show(ConferenceListActivity.this, "", 
-					"Downloading conference list, please wait...", true);
-			GetConferencesTask task = new GetConferencesTask(Config.BASE_URL, this);
-			task.execute();
+			refresh();
 		}
 	}
 
 	@Override
 	public void conferencesDownloaded(ArrayList<Conference> conferences) {
-		if (mDialog != null)
-			mDialog.dismiss();
-		showConferences();
+		if (isFinishing())
+			return;
+		mRefreshButton.setEnabled(true);
+		showConferences(conferences);
 	}
 
 
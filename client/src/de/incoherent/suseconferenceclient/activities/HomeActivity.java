@@ -11,6 +11,9 @@
 package de.incoherent.suseconferenceclient.activities;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import com.actionbarsherlock.app.ActionBar;
 import com.actionbarsherlock.app.ActionBar.Tab;
@@ -25,11 +28,13 @@ import de.incoherent.suseconferenceclient.Config;
 import de.incoherent.suseconferenceclient.adapters.TabAdapter;
 import de.incoherent.suseconferenceclient.app.AboutDialog;
 import de.incoherent.suseconferenceclient.app.Database;
+import de.incoherent.suseconferenceclient.app.ScheduleSyncService;
 import de.incoherent.suseconferenceclient.fragments.ChangeLogDialogFragment;
 import de.incoherent.suseconferenceclient.fragments.FilterDialogFragment;
 import de.incoherent.suseconferenceclient.fragments.MyScheduleFragment;
 import de.incoherent.suseconferenceclient.fragments.NewsFeedFragment;
 import de.incoherent.suseconferenceclient.fragments.ScheduleFragment;
+import de.incoherent.suseconferenceclient.models.ChangeSet;
 import de.incoherent.suseconferenceclient.models.Conference;
 import de.incoherent.suseconferenceclient.tasks.CacheConferenceTask;
 import de.incoherent.suseconferenceclient.tasks.CacheConferenceTask.CacheConferenceTaskListener;
@@ -41,6 +46,7 @@ import de.incoherent.suseconferenceclient.R;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.app.AlertDialog;
 import android.app.ProgressDialog;
 import android.content.Context;
@@ -75,6 +81,11 @@ GetConferencesTask.ConferenceListListener, CacheConferenceTaskListener, CheckFor
 	private long mConferenceId = -1;
 	private long mVenueId = -1;
 	private ProgressDialog mDialog;
+	// For timing how long the first screen takes to show a conference list
+	private long mStartTime = 0;
+	private boolean mConferenceListShown = false;
+	// The conferences that were stored before a refresh behind them
+	private HashSet<Long> mStoredIds = null;
 	private Conference mConference = null;
 
 	@Override
@@ -93,19 +104,8 @@ GetConferencesTask.ConferenceListListener, CacheConferenceTaskListener, CheckFor
 	
 		if (mConferenceId == -1) {
 			Log.d("SUSEConferences", "Conference ID is -1");
-			if (!hasInternet()) {
-				AlertDialog.Builder builder = new AlertDialog.Builder(this);
-				builder.setMessage("Please enable internet access and try again.");
-				builder.setCancelable(false);
-				builder.setPositiveButton("OK", new DialogInterface.OnClickListener() {
-					public void onClick(DialogInterface dialog, int id) {
-						HomeActivity.this.finish();
-					}
-				});
-				builder.show();
-			} else {
-				loadConferences();
-			}
+			mStartTime = SystemClock.elapsedRealtime();
+			showStoredConferences();
 		} else {
 			if (savedInstanceState != null)
 				setView(false);
@@ -160,8 +160,8 @@ GetConferencesTask.ConferenceListListener, CacheConferenceTaskListener, CheckFor
 		
 		menu.add(Menu.CATEGORY_SYSTEM, R.id.filterEvents, 10, getString(R.string.filter))
 		.setShowAsAction(MenuItem.SHOW_AS_ACTION_COLLAPSE_ACTION_VIEW);
-		//menu.add(Menu.CATEGORY_SYSTEM, R.id.checkForUpdates, 11, getString(R.string.checkForUpdates))
-		//.setShowAsAction(MenuItem.SHOW_AS_ACTION_COLLAPSE_ACTION_VIEW);
+		menu.add(Menu.CATEGORY_SYSTEM, R.id.checkForUpdates, 11, getString(R.string.checkForUpdates))
+		.setShowAsAction(MenuItem.SHOW_AS_ACTION_COLLAPSE_ACTION_VIEW);
 		menu.add(Menu.CATEGORY_SYSTEM, R.id.conferenceList, 12, getString(R.string.conferenceList))
 		.setShowAsAction(MenuItem.SHOW_AS_ACTION_COLLAPSE_ACTION_VIEW);
 		menu.add(Menu.CATEGORY_SYSTEM, R.id.aboutItem, 13, getString(R.string.menu_about))
@@ -303,17 +303,67 @@ GetConferencesTask.ConferenceListListener, CacheConferenceTaskListener, CheckFor
 		}
 	}
 
+	// Only used when there are no conferences stored yet, so there's
+	// nothing to show until the list arrives
 	private void loadConferences() {    	
 		mDialog = ProgressDialog.show(HomeActivity.this, "", 
 				"Downloading conference list, please wait...", true);
 		GetConferencesTask task = new GetConferencesTask(Config.BASE_URL, this);
 		task.execute();
 	}
-
-	@Override
-	public void conferencesDownloaded(ArrayList<Conference> conferences) {
-		Log.d("SUSEConferences", "Conferences downloaded: " + conferences.size());
-		mDialog.dismiss();
+	
+	// Offers the conferences already in the database, if there are any,
+	// and otherwise downloads the list
+	private void showStoredConferences() {
+		final Database db = SUSEConferences.getDatabase();
+		db.read(new Callable<List<Conference>>() {
+			@Override
+			public List<Conference> call() {
+				return db.getConferenceList();
+			}
+		}, new Database.ResultListener<List<Conference>>() {
+			@Override
+			public void onResult(List<Conference> conferences) {
+				if (isFinishing())
+					return;
+				if (conferences != null && !conferences.isEmpty())
+					storedConferencesLoaded(conferences);
+				else if (hasInternet())
+					loadConferences();
+				else
+					showNoInternet();
+			}
+		});
+	}
+	
+	private void storedConferencesLoaded(List<Conference> conferences) {
+		mConferenceListShown = true;
+		// Refresh the list behind it.  With more than one conference the
+		// conference list activity is shown, and that refreshes itself.
+		if (conferences.size() == 1 && hasInternet()) {
+			mStoredIds = new HashSet<Long>();
+			for (Conference conference : conferences)
+				mStoredIds.add(conference.getSqlId());
+			new GetConferencesTask(Config.BASE_URL, this).execute();
+		}
+		showConferences(conferences);
+	}
+	
+	private void showNoInternet() {
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setMessage("Please enable internet access and try again.");
+		builder.setCancelable(false);
+		builder.setPositiveButton("OK", new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface dialog, int id) {
+				HomeActivity.this.finish();
+			}
+		});
+		builder.show();
+	}
+	
+	private void showConferences(List<Conference> conferences) {
+		Log.d("SUSEConferences", "Conference list ready after "
+				+ (SystemClock.elapsedRealtime() - mStartTime) + " ms");
 		if (conferences.size() == 1) {
 			conferenceChosen(conferences.get(0));
 		} else if (conferences.size() > 1) {
@@ -321,6 +371,30 @@ GetConferencesTask.ConferenceListListener, CacheConferenceTaskListener, CheckFor
 		}
 	}
 
+	@Override
+	public void conferencesDownloaded(ArrayList<Conference> conferences) {
+		Log.d("SUSEConferences", "Conferences downloaded: " + conferences.size());
+		if (mConferenceListShown) {
+			// A refresh behind the one stored conference, which is open by
+			// now; point out anything it found
+			int added = 0;
+			for (Conference conference : conferences) {
+				if (mStoredIds == null || !mStoredIds.contains(conference.getSqlId()))
+					added++;
+			}
+			mStoredIds = null;
+			if (added > 0 && !isFinishing()) {
+				String message = added == 1 ? "A new conference is available" : added + " new conferences are available";
+				Toast.makeText(this, message + ", see " + getString(R.string.conferenceList) + " in the menu",
+						Toast.LENGTH_LONG).show();
+			}
+			return;
+		}
+		mDialog.dismiss();
+		mConferenceListShown = true;
+		showConferences(conferences);
+	}
+
 	private void conferenceChosen(Conference conference) {
 		mConferenceId = conference.getSqlId();
 		mConference = conference;
@@ -334,6 +408,7 @@ GetConferencesTask.ConferenceListListener, CacheConferenceTaskListener, CheckFor
 			SharedPreferences.Editor editor = settings.edit();
 			editor.putLong("active_conference", mConferenceId);
 			editor.commit();
+			ScheduleSyncService.schedule(this);
 			setView(true);
 		}
 	}
@@ -393,6 +468,7 @@ GetConferencesTask.ConferenceListListener, CacheConferenceTaskListener, CheckFor
 				SharedPreferences.Editor editor = settings.edit();
 				editor.putLong("active_conference", id);
 				editor.commit();
+				ScheduleSyncService.schedule(this);
 				// TODO This is clumsy, figure out how to handle reloading the fragments
 				// without crashes
 				Intent i = getBaseContext().getPackageManager()
@@ -417,12 +493,10 @@ GetConferencesTask.ConferenceListListener, CacheConferenceTaskListener, CheckFor
 
 	@Override
 	public void conferenceCached(long id, String message) {
-		Database db = SUSEConferences.getDatabase();
 		if (id == -1) {
 			Log.d("SUSEConferences", "Error!");
 			// TODO handle errors more gracefully
-			db.setConferenceAsCached(mConference.getSqlId(), 0);
-			db.clearDatabase(mConference.getSqlId());
+			// Nothing needs clearing: a failed cache doesn't write anything
 
 			if (mDialog != null)
 				mDialog.dismiss();
@@ -447,6 +521,7 @@ GetConferencesTask.ConferenceListListener, CacheConferenceTaskListener, CheckFor
 			SharedPreferences.Editor editor = settings.edit();
 			editor.putLong("active_conference", id);
 			editor.commit();
+			ScheduleSyncService.schedule(this);
 			setView(true);
 		}
 	}
@@ -475,7 +550,7 @@ GetConferencesTask.ConferenceListListener, CacheConferenceTaskListener, CheckFor
 	}
 
 	@Override
-	public void updatesChecked(long id, String error) {
+	public void updatesChecked(long id, String error, ChangeSet changes) {
 		if (id == -1) {
 			AlertDialog.Builder builder = new AlertDialog.Builder(this);
 			builder.setMessage(error);
@@ -488,6 +563,10 @@ GetConferencesTask.ConferenceListListener, CacheConferenceTaskListener, CheckFor
 		} else if (id == 0) {
 			Toast.makeText(this, "No updates available", Toast.LENGTH_SHORT).show();
 		} else {
+			if (changes != null)
+				Toast.makeText(this, "Schedule updated: " + changes.getSummary(), Toast.LENGTH_LONG).show();
+			// The conference's dates may have moved
+			ScheduleSyncService.schedule(this);
 			ScheduleFragment scheduleFragment = null;
 			MyScheduleFragment myScheduleFragment = null;
 			Database db = SUSEConferences.getDatabase();
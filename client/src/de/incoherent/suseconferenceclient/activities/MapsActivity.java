@@ -10,13 +10,8 @@
  ******************************************************************************/
 package de.incoherent.suseconferenceclient.activities;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URL;
-import java.net.URLConnection;
+import java.io.IOException;
 
 import org.osmdroid.util.BoundingBoxE6;
 
@@ -42,6 +37,7 @@ import android.widget.LinearLayout;
 import de.incoherent.suseconferenceclient.SUSEConferences;
 import de.incoherent.suseconferenceclient.app.AboutDialog;
 import de.incoherent.suseconferenceclient.app.Database;
+import de.incoherent.suseconferenceclient.app.MapDownloader;
 import de.incoherent.suseconferenceclient.maps.GoogleMap;
 import de.incoherent.suseconferenceclient.maps.MapInterface;
 import de.incoherent.suseconferenceclient.maps.OSMMap;
@@ -81,10 +77,12 @@ public class MapsActivity extends SherlockMapActivity {
 		}
 		mOfflineMapUrl = mVenue.getOfflineMapUrl();
 		mOfflineMapFilename = "";
-		if (mOfflineMapUrl != null && mOfflineMapUrl.length() > 0) {
+		// No external storage mounted, no offline map
+		File mapDir = getExternalFilesDir(null);
+		if (mOfflineMapUrl != null && mOfflineMapUrl.length() > 0 && mapDir != null) {
 			mHasOfflineMap = true;
 			mOfflineMapFilename = mOfflineMapUrl.substring(mOfflineMapUrl.lastIndexOf('/')+1, mOfflineMapUrl.length());
-			mOfflineMap = new File(getExternalFilesDir(null), mOfflineMapFilename);
+			mOfflineMap = new File(mapDir, mOfflineMapFilename);
 			Log.d("SUSEConferences", "Offline map path: " + mOfflineMap.getAbsolutePath());
 		}
 
@@ -150,8 +148,7 @@ public class MapsActivity extends SherlockMapActivity {
     	        public void onClick(DialogInterface dialog, int which) 
     	        {
     	        	Log.d("SUSEConferences", "Cancelling map download");
-    	            downloader.cancel(true);
-    	    		mDownloadedOfflineMap = false;
+    	            downloader.stop();
     	            return;
     	        }
     	    });
@@ -258,52 +255,74 @@ public class MapsActivity extends SherlockMapActivity {
 		return box;
 	}
 	
-    private class DownloadMapTask extends AsyncTask<String, Integer, Void> {
-        protected void onProgressUpdate(Integer... progress) {
-        	mDownloaderProgressDialog.setProgress(progress[0]);
-    		mDownloaderProgressDialog.setMessage("Downloaded %" + progress[0]);
+    private class DownloadMapTask extends AsyncTask<String, Long, Boolean> {
+    	private volatile MapDownloader mDownloader = null;
+    	private String mErrorMessage = "";
+    	
+    	// AsyncTask.cancel() can't interrupt a blocking read
+    	public void stop() {
+    		cancel(false);
+    		if (mDownloader != null)
+    			mDownloader.cancel();
+    	}
+    	
+        protected void onProgressUpdate(Long... progress) {
+        	long downloaded = progress[0];
+        	long total = progress[1];
+        	String megabytes = String.format("%.1f", downloaded / 1048576.0);
+        	if (total > 0) {
+        		int percent = (int) (downloaded * 100 / total);
+        		mDownloaderProgressDialog.setProgress(percent);
+        		mDownloaderProgressDialog.setMessage("Downloaded " + percent + "% ("
+        				+ megabytes + " of " + String.format("%.1f", total / 1048576.0) + " MB)");
+        	} else {
+        		mDownloaderProgressDialog.setMessage("Downloaded " + megabytes + " MB");
+        	}
         }
 
 		@Override
-		protected Void doInBackground(String... params) {
+		protected Boolean doInBackground(String... params) {
 			String mapUrl = params[0];
 			String path = params[1];
+			// Progress is already limited to a few updates a second
+			mDownloader = new MapDownloader(mapUrl, new File(path), new MapDownloader.ProgressListener() {
+				@Override
+				public void progress(long downloaded, long total) {
+					publishProgress(downloaded, total);
+				}
+			});
+			if (isCancelled())
+				mDownloader.cancel();
 			try {
-	            URL url = new URL(mapUrl);
-	            URLConnection connection = url.openConnection();
-	            connection.connect();
-	            int mapLength = connection.getContentLength();
-
-	            InputStream input = new BufferedInputStream(url.openStream());
-	            OutputStream output = new FileOutputStream(path);
-
-	            byte data[] = new byte[1024];
-	            long total = 0;
-	            int count;
-	            while ((count = input.read(data)) != -1 && !isCancelled()) {
-	                total += count;
-	                publishProgress((int) (total * 100 / mapLength));
-	                output.write(data, 0, count);
-	            }
-
-	            output.flush();
-	            output.close();
-	            input.close();
-
-	            if (isCancelled()) {
-	            	File file = new File(path);
-	            	file.delete();
-	            }
-	            
-	        } catch (Exception e) {
-	        	
+				return mDownloader.download();
+	        } catch (IOException e) {
+	        	e.printStackTrace();
+	        	mErrorMessage = e.getLocalizedMessage();
+	        	return false;
 	        }
-	        return null;
 		}
 		
-    	protected void onPostExecute(Void param) {
-    		mDownloadedOfflineMap = true;
+		@Override
+		protected void onCancelled() {
+			// The partial download is kept, and picked up again next time
+			Log.d("SUSEConferences", "Map download cancelled");
+		}
+		
+    	protected void onPostExecute(Boolean downloaded) {
     		mDownloaderProgressDialog.dismiss();
+    		if (!downloaded) {
+    			if (mDownloader.isCancelled())
+    				return;
+    			AlertDialog.Builder builder = new AlertDialog.Builder(MapsActivity.this);
+    			builder.setMessage("The map couldn't be downloaded: " + mErrorMessage);
+    			builder.setPositiveButton("OK", new DialogInterface.OnClickListener() {
+    				public void onClick(DialogInterface dialog, int id) {
+    				}
+    			});
+    			builder.show();
+    			return;
+    		}
+    		mDownloadedOfflineMap = true;
     		useOfflineMaps();
     		attachMap();
     	}
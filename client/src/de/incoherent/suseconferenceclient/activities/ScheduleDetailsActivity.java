@@ -14,6 +14,7 @@ import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
@@ -33,6 +34,7 @@ import android.text.Html;
 import android.text.format.DateFormat;
 import android.text.method.LinkMovementMethod;
 import android.util.Log;
+import android.util.Pair;
 import android.view.View;
 import android.widget.LinearLayout;
 import android.widget.TextView;
@@ -55,14 +57,15 @@ public class ScheduleDetailsActivity extends SherlockActivity  {
 	private long mConferenceId;
 	private TextView mTitleView, mTitleTime, mAbstractView, mTrackView;
 	private boolean mFavoriteCheck = false, mCalendarCheck = false;
-	public void onCreate(Bundle savedInstanceState) {
+	private long mCalendarId = -1;
+	public void onCreate(final Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.agenda_item_details);
 		
 		Bundle extras = getIntent().getExtras();
 		mConferenceId = extras.getLong("conferenceId");
+		final long eventId = extras.getLong("eventId");
 		mDb = SUSEConferences.getDatabase();
-		mEvent = mDb.getEvent(mConferenceId, extras.getLong("eventId"));
 
 		mTitleView = (TextView) findViewById(R.id.agendaItemName);
 		mTitleTime = (TextView) findViewById(R.id.agendaItemTime);
@@ -76,9 +79,38 @@ public class ScheduleDetailsActivity extends SherlockActivity  {
 			mTitleTime.setText(savedInstanceState.getString("time"));
 			mAbstractView.setText(savedInstanceState.getString("abstract"));
 			mTrackView.setText(savedInstanceState.getString("track"));
-		} else {
-			setEvent(mEvent);
 		}
+
+		// The snapshot may have to be rebuilt, so the event is looked up
+		// on the reader pool.  The menu is only shown once it's there.
+		mDb.read(new Callable<Pair<Event, Long>>() {
+			@Override
+			public Pair<Event, Long> call() {
+				Event event = mDb.getSnapshot(mConferenceId).getEvent(eventId);
+				if (event == null)
+					return null;
+				return new Pair<Event, Long>(event, mDb.getEventCalendarId(event.getSqlId()));
+			}
+		}, new Database.ResultListener<Pair<Event, Long>>() {
+			@Override
+			public void onResult(Pair<Event, Long> result) {
+				if (isFinishing())
+					return;
+				if (result == null) {
+					// A sync has taken it out of the schedule
+					Toast.makeText(ScheduleDetailsActivity.this, "This talk is no longer in the schedule", Toast.LENGTH_LONG).show();
+					finish();
+					return;
+				}
+				mEvent = result.first;
+				mCalendarId = result.second;
+				if (savedInstanceState == null)
+					setEvent(mEvent);
+				else
+					updateCalendarCheck();
+				supportInvalidateOptionsMenu();
+			}
+		});
 	}
 
 	@Override
@@ -86,6 +118,11 @@ public class ScheduleDetailsActivity extends SherlockActivity  {
 		super.onResume();
 		// Since we launch a Calendar intent when the user clicks the calendar button,
 		// check if they cancelled the calendar addition
+		if (mEvent != null)
+			updateCalendarCheck();
+	}
+
+	private void updateCalendarCheck() {
 		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
 			if (findEventId() >= 0)
 				mCalendarCheck = true;
@@ -185,6 +222,8 @@ public class ScheduleDetailsActivity extends SherlockActivity  {
 	
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
+    	if (mEvent == null)
+    		return true;
     	MenuItem item = menu.add(Menu.NONE, R.id.actionBarFavorite, Menu.NONE, "");
     	item.setCheckable(true);
     	item.setShowAsAction(MenuItem.SHOW_AS_ACTION_ALWAYS);
@@ -326,6 +365,24 @@ public class ScheduleDetailsActivity extends SherlockActivity  {
 			}
 		}
 		c.close();
+		
+		// If the talk has been moved since it was added to the calendar,
+		// the search above won't find it, so fall back to the saved id
+		if (id < 0 && mCalendarId >= 0) {
+			String[] idField = { Events._ID };
+			c = cr.query(ContentUris.withAppendedId(Events.CONTENT_URI, mCalendarId), idField,
+					Events.DELETED + " = 0", null, null);
+			if (c != null) {
+				if (c.moveToFirst())
+					id = mCalendarId;
+				c.close();
+			}
+		}
+		
+		if (id != mCalendarId) {
+			mCalendarId = id;
+			mDb.setEventCalendarId(mEvent.getSqlId(), id);
+		}
 		return id;
 	}
 
@@ -334,5 +391,7 @@ public class ScheduleDetailsActivity extends SherlockActivity  {
 		ContentResolver cr = getContentResolver();
 		Uri uri = ContentUris.withAppendedId(Events.CONTENT_URI, id);
 		int rows = cr.delete(uri, null, null);
+		mCalendarId = -1;
+		mDb.setEventCalendarId(mEvent.getSqlId(), -1);
 	}
 }
@@ -15,10 +15,12 @@ import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
 
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -48,7 +50,7 @@ public class SearchResultsActivity extends SherlockListActivity {
         super.onCreate(savedInstanceState);
 		mHeaderFormatter = DateFormat.getDateInstance(DateFormat.LONG);
 
-		Database db = SUSEConferences.getDatabase();
+		final Database db = SUSEConferences.getDatabase();
 		getListView().setFastScrollEnabled(true);
 		getListView().setDrawSelectorOnTop(true);
 
@@ -57,9 +59,43 @@ public class SearchResultsActivity extends SherlockListActivity {
         bar.setNavigationMode(ActionBar.NAVIGATION_MODE_STANDARD);
         bar.setTitle("Results for \"" + extras.getString("query") + "\"");
         mConferenceId = extras.getLong("conferenceId");
-        List<Event> results = db.getEventsFromIdList(mConferenceId, extras.getStringArrayList("results"));
+        final ArrayList<String> ids = extras.getStringArrayList("results");
+        // The snapshot may have to be rebuilt, so the list is put together
+        // on the reader pool
+        db.read(new Callable<List<ScheduleItem>>() {
+			@Override
+			public List<ScheduleItem> call() {
+				return buildItems(db.getSnapshot(mConferenceId).getEvents(ids));
+			}
+        }, new Database.ResultListener<List<ScheduleItem>>() {
+			@Override
+			public void onResult(List<ScheduleItem> items) {
+				if (items == null || isFinishing())
+					return;
+				ScheduleAdapter adapter = new ScheduleAdapter(SearchResultsActivity.this,
+						true,
+						R.layout.schedule_list_item,
+						getResources().getColor(R.color.dark_suse_green),
+						getResources().getColor(R.color.suse_grey),
+						items);
+				setListAdapter(adapter);
+			}
+        });
+    }
+    
+    // The hits come best match first.  They are grouped under their
+    // day, but only the days are put in date order: Collections.sort
+    // is stable, so within a day they stay in order of relevance.
+    private List<ScheduleItem> buildItems(List<Event> results) {
+        Collections.sort(results, new Comparator<Event>() {
+			@Override
+			public int compare(Event lhs, Event rhs) {
+				int l = dayKey(lhs);
+				int r = dayKey(rhs);
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+        });
 		List<ScheduleItem> items = new ArrayList<ScheduleItem>();
-		Collections.sort(results);
 		
 		if (results.size() > 0) {
 			ScheduleItem newItem = new ScheduleItem(buildHeaderText(results.get(0)), getDayString(results.get(0)));
@@ -78,14 +114,7 @@ public class SearchResultsActivity extends SherlockListActivity {
 				items.add(newEvent);
 			}
 		}
-		
-		ScheduleAdapter adapter = new ScheduleAdapter(this,
-				true,
-				R.layout.schedule_list_item,
-				getResources().getColor(R.color.dark_suse_green),
-				getResources().getColor(R.color.suse_grey),
-				items);
-		setListAdapter(adapter);
+		return items;
     }
     
 	private String buildHeaderText(Event event) {
@@ -97,6 +126,14 @@ public class SearchResultsActivity extends SherlockListActivity {
 		cal.setTime(e.getDate());
 		return String.valueOf(cal.get(Calendar.DAY_OF_MONTH));
 	}
+	// Orders days; the same for any two events on the same day
+	private int dayKey(Event e) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeZone(e.getTimeZone());
+		cal.setTime(e.getDate());
+		return cal.get(Calendar.YEAR) * 1000 + cal.get(Calendar.DAY_OF_YEAR);
+	}
+	
 	private boolean sameDay(Date day1, Date day2, TimeZone tz1, TimeZone tz2) {
 		Calendar cal1 = Calendar.getInstance();
 		cal1.setTimeZone(tz1);
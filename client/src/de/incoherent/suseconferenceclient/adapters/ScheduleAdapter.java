@@ -29,13 +29,22 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.SectionIndexer;
 import android.widget.TextView;
 
-public class ScheduleAdapter extends ArrayAdapter<ScheduleAdapter.ScheduleItem> implements SectionIndexer {
+public class ScheduleAdapter extends BaseAdapter implements SectionIndexer {
+	// Where the adapter gets its rows from.  Day headers are rows too, and
+	// the sections are used for the fast scroll index.
+	public interface ScheduleItemSource {
+		public int getCount();
+		public ScheduleItem getItem(int position);
+		public Object[] getSections();
+		public int getPositionForSection(int section);
+	}
+	
 	// Use a ViewHolder to save all of the ID lookup time 
 	private static class ViewHolder {
         ImageView favoriteView;
@@ -55,6 +64,17 @@ public class ScheduleAdapter extends ArrayAdapter<ScheduleAdapter.ScheduleItem>
 		int mColor = 0;
 		boolean mIsEmpty = true;
 		boolean mConflict;
+		boolean mIsPlaceholder = false;
+		
+		// A row whose event is still being loaded
+		public static ScheduleItem placeholder() {
+			ScheduleItem item = new ScheduleItem();
+			item.mIsPlaceholder = true;
+			return item;
+		}
+		
+		private ScheduleItem() {
+		}
 		
 		// TODO The day string is used for the fast scroll display.  It would be nice to show the entire title
 		public ScheduleItem(String headerTitle, String day) {
@@ -89,6 +109,10 @@ public class ScheduleAdapter extends ArrayAdapter<ScheduleAdapter.ScheduleItem>
 			return mIsHeader;
 		}
 
+		public boolean isPlaceholder() {
+			return mIsPlaceholder;
+		}
+
 		public void setIsHeader(boolean isHeader) {
 			mIsHeader = isHeader;
 		}
@@ -113,17 +137,61 @@ public class ScheduleAdapter extends ArrayAdapter<ScheduleAdapter.ScheduleItem>
 		}
 	}
 	
+	// An item source backed by a list that has already been built,
+	// headers and all
+	public static class ListItemSource implements ScheduleItemSource {
+		private List<ScheduleItem> mItems;
+		private Object[] mSections;
+		private int[] mPositionsForSection;
+		
+		public ListItemSource(List<ScheduleItem> itemList) {
+			this.mItems = itemList;
+			List<Object> sections = new ArrayList<Object>();
+			List<Integer> sectionPositions = new ArrayList<Integer>();
+			int size = itemList.size();
+			for (int i = 0; i < size; i++) {
+				ScheduleItem item = itemList.get(i);
+				if (item.isHeader()) {
+					sections.add(item.getDayString());
+					sectionPositions.add(i);
+				}
+			}
+			
+			mSections = sections.toArray();
+			mPositionsForSection = new int[sectionPositions.size()];
+			for (int i = 0; i < mPositionsForSection.length; i++)
+				mPositionsForSection[i] = sectionPositions.get(i);
+		}
+		
+		@Override
+		public int getCount() {
+			return mItems.size();
+		}
+		
+		@Override
+		public ScheduleItem getItem(int position) {
+			return mItems.get(position);
+		}
+		
+		@Override
+		public Object[] getSections() {
+			return mSections;
+		}
+		
+		@Override
+		public int getPositionForSection(int section) {
+			return mPositionsForSection[section];
+		}
+	}
+	
 	private int mResource;
 	private Context mContext;
 	private int mHeaderTextColor, mHeaderBackColor;
 	private LayoutInflater mLayoutInflator;
-	private List<ScheduleItem> mItems;
+	private ScheduleItemSource mSource;
     private java.text.DateFormat mTimeFormatter;
     private Boolean mFullSchedule = true;
     private int mSUSEGreen;
-    private Object[] mIndexerSections;
-    private int[] mIndexerPositionsForSection;
-    private int[] mIndexerSectionsForPosition;
     
 	public ScheduleAdapter(Context context,
 							    boolean fullSchedule,
@@ -131,8 +199,16 @@ public class ScheduleAdapter extends ArrayAdapter<ScheduleAdapter.ScheduleItem>
 							    int headerTextColor, 
 							    int headerBackColor,
 							    List<ScheduleItem> itemList) {
-		super(context, resource, itemList);
-		this.mItems = itemList;
+		this(context, fullSchedule, resource, headerTextColor, headerBackColor, new ListItemSource(itemList));
+	}
+	
+	public ScheduleAdapter(Context context,
+							    boolean fullSchedule,
+							    int resource,
+							    int headerTextColor, 
+							    int headerBackColor,
+							    ScheduleItemSource source) {
+		this.mSource = source;
 		this.mFullSchedule = fullSchedule;
 		this.mContext = context;
 		this.mLayoutInflator = LayoutInflater.from(context);
@@ -141,39 +217,31 @@ public class ScheduleAdapter extends ArrayAdapter<ScheduleAdapter.ScheduleItem>
 		this.mHeaderBackColor = headerBackColor;
 		this.mTimeFormatter = DateFormat.getTimeFormat(context);
 		this.mSUSEGreen = context.getResources().getColor(R.color.dark_suse_green);
-		
-		List<Object> sections = new ArrayList<Object>();
-		List<Integer> sectionPositions = new ArrayList<Integer>();
-		mIndexerSectionsForPosition = new int[itemList.size()];
-		int size = itemList.size();
-		int currentSection = 0;
-
-		for (int i = 0; i < size; i++) {
-			ScheduleItem item = itemList.get(i);
-			if (item.isHeader()) {
-				sections.add(item.getDayString());
-				sectionPositions.add(i);
-				mIndexerSectionsForPosition[i] = currentSection;
-				currentSection++;
-			} else {
-				mIndexerSectionsForPosition[i] = currentSection;
-			}
-		}
-		
-		mIndexerSections = sections.toArray();
-		mIndexerPositionsForSection =  new int[sectionPositions.size()];
-		for(int i = 0; i < mIndexerPositionsForSection.length; i++)
-			mIndexerPositionsForSection[i] = sectionPositions.get(i);
-
 	}
 	
 	@Override
-	public void clear() {
-		mItems.clear();
+	public int getCount() {
+		return mSource.getCount();
+	}
+	
+	@Override
+	public ScheduleItem getItem(int position) {
+		return mSource.getItem(position);
 	}
 	
-	public void setList(List<ScheduleItem> list) {
-		mItems = list;
+	@Override
+	public long getItemId(int position) {
+		return position;
+	}
+	
+	@Override
+	public boolean areAllItemsEnabled() {
+		return false;
+	}
+	
+	@Override
+	public boolean isEnabled(int position) {
+		return !mSource.getItem(position).isPlaceholder();
 	}
 	
 	private boolean eventWithinRange(Date now, Event event) {
@@ -188,7 +256,7 @@ public class ScheduleAdapter extends ArrayAdapter<ScheduleAdapter.ScheduleItem>
         int scheduleHour = 0;
         int scheduleHour24 = 0;
         ViewHolder viewHolder;
-        ScheduleItem item = mItems.get(position);
+        ScheduleItem item = mSource.getItem(position);
         Event event = item.getEvent();
         
         if (convertView == null) {
@@ -220,6 +288,17 @@ public class ScheduleAdapter extends ArrayAdapter<ScheduleAdapter.ScheduleItem>
         	viewHolder.timeLayout.setVisibility(View.GONE);
         	viewHolder.timeText.setVisibility(View.GONE);
         	viewHolder.favoriteView.setVisibility(View.GONE);
+        } else if (item.isPlaceholder()) {
+        	viewHolder.titleText.setText("Loading...");
+        	viewHolder.titleText.setTypeface(null, Typeface.NORMAL);
+        	viewHolder.titleText.setTextColor(Color.GRAY);
+        	viewHolder.favoriteView.setVisibility(View.GONE);
+        	viewHolder.speakerText.setVisibility(View.GONE);
+        	viewHolder.trackText.setVisibility(View.GONE);
+        	viewHolder.roomText.setVisibility(View.GONE);
+        	viewHolder.timeLayout.setVisibility(View.VISIBLE);
+        	viewHolder.timeText.setVisibility(View.VISIBLE);
+        	viewHolder.timeText.setText("");
         } else if (event.isMetaInformation()) {
         	viewHolder.titleText.setText(event.getTitle());
         	viewHolder.titleText.setTypeface(null, Typeface.NORMAL);
@@ -330,18 +409,17 @@ public class ScheduleAdapter extends ArrayAdapter<ScheduleAdapter.ScheduleItem>
 
 	@Override
 	public int getPositionForSection(int section) {
-		return mIndexerPositionsForSection[section];
+		return mSource.getPositionForSection(section);
 	}
 
 	@Override
 	public int getSectionForPosition(int position) {
-//		return mIndexerSectionsForPosition[position];
 		return 0;
 	}
 
 	@Override
 	public Object[] getSections() {
-		return mIndexerSections;
+		return mSource.getSections();
 	}
 
 }
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Matt Barringer <matt@incoherent.de>.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Matt Barringer <matt@incoherent.de> - initial API and implementation
+ ******************************************************************************/
+package de.incoherent.suseconferenceclient.adapters;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import de.incoherent.suseconferenceclient.adapters.ScheduleAdapter.ScheduleItem;
+import de.incoherent.suseconferenceclient.app.Database;
+import de.incoherent.suseconferenceclient.models.Event;
+import de.incoherent.suseconferenceclient.models.ScheduleDay;
+
+/*
+ * Item source for the full schedule that only loads the events that are
+ * actually on screen.  Up front it only asks the database how many events
+ * there are on each day, which is enough to lay out the headers; the
+ * events themselves are loaded a page at a time as the list scrolls.
+ * Pages are only ever loaded on the database's reader threads.  The page
+ * after (or before) the one on screen is loaded before the list gets to
+ * it; if the list jumps to a page that isn't loaded (fast scroll, say),
+ * its rows are placeholders until the page arrives and the PageListener
+ * is told.  The constructor and getPositionForTime() query the database,
+ * so call them off the main thread; everything else is only meant to be
+ * called on the main thread.
+ */
+public class ScheduleWindow implements ScheduleAdapter.ScheduleItemSource {
+	public interface PageListener {
+		// Called on the main thread when a page that was shown as
+		// placeholders has been loaded
+		public void pageLoaded();
+	}
+	
+	private static final int PAGE_SIZE = 40;
+	private static final int MAX_PAGES = 5;
+	// How close to the end of a page the list gets before the next one is loaded
+	private static final int PREFETCH_DISTANCE = 10;
+
+	private final Database mDb;
+	private final long mConferenceId;
+	private final String mTrackFilter;
+	private final String mLanguageFilter;
+
+	private ScheduleItem[] mHeaders;
+	// List position of each day's header
+	private int[] mHeaderPositions;
+	private String[] mSections;
+	private int mCount = 0;
+	// Pages that are being loaded in the background
+	private Set<Integer> mPending = new HashSet<Integer>();
+	// Pending pages that have been shown as placeholders
+	private Set<Integer> mWanted = new HashSet<Integer>();
+	private PageListener mPageListener = null;
+	private final ScheduleItem mPlaceholder = ScheduleItem.placeholder();
+
+	private Map<Integer, List<ScheduleItem>> mPages = new LinkedHashMap<Integer, List<ScheduleItem>>(MAX_PAGES + 1, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, List<ScheduleItem>> eldest) {
+			return size() > MAX_PAGES;
+		}
+	};
+
+	public ScheduleWindow(Database db,
+						  long conferenceId,
+						  String trackFilter,
+						  String languageFilter,
+						  DateFormat headerFormatter) {
+		this.mDb = db;
+		this.mConferenceId = conferenceId;
+		this.mTrackFilter = trackFilter;
+		this.mLanguageFilter = languageFilter;
+
+		List<ScheduleDay> days = db.getScheduleDays(conferenceId, trackFilter, languageFilter);
+		int dayCount = days.size();
+		mHeaders = new ScheduleItem[dayCount];
+		mHeaderPositions = new int[dayCount];
+		mSections = new String[dayCount];
+		Calendar cal = new GregorianCalendar();
+		for (int i = 0; i < dayCount; i++) {
+			ScheduleDay day = days.get(i);
+			headerFormatter.setTimeZone(day.getTimeZone());
+			cal.setTime(day.getFirstStart());
+			mSections[i] = String.valueOf(cal.get(Calendar.DAY_OF_MONTH));
+			mHeaders[i] = new ScheduleItem(headerFormatter.format(day.getFirstStart()), mSections[i]);
+			mHeaderPositions[i] = mCount;
+			mCount += day.getEventCount() + 1;
+		}
+	}
+
+	public void setPageListener(PageListener listener) {
+		mPageListener = listener;
+	}
+
+	@Override
+	public int getCount() {
+		return mCount;
+	}
+
+	@Override
+	public ScheduleItem getItem(int position) {
+		int day = dayForPosition(position);
+		if (mHeaderPositions[day] == position)
+			return mHeaders[day];
+
+		// Every day before this one, and this one, has a header above its events
+		int index = position - day - 1;
+		int page = index / PAGE_SIZE;
+		List<ScheduleItem> items = mPages.get(page);
+		if (items == null) {
+			// Never query on the main thread: a sync's transaction
+			// could hold it up
+			mWanted.add(page);
+			load(page);
+			return mPlaceholder;
+		}
+
+		int offset = index - page * PAGE_SIZE;
+		if (offset >= PAGE_SIZE - PREFETCH_DISTANCE)
+			load(page + 1);
+		else if (offset < PREFETCH_DISTANCE)
+			load(page - 1);
+
+		if (offset >= items.size()) {
+			// The schedule changed underneath us; fall back to the day's
+			// header rather than crashing until the list is reloaded
+			return mHeaders[day];
+		}
+		return items.get(offset);
+	}
+
+	@Override
+	public Object[] getSections() {
+		return mSections;
+	}
+
+	@Override
+	public int getPositionForSection(int section) {
+		return mHeaderPositions[section];
+	}
+
+	// List position of the first event that hasn't finished by the
+	// given time, or -1 if the whole schedule is over
+	public int getPositionForTime(long time) {
+		int index = mDb.getScheduleIndexForTime(mConferenceId, mTrackFilter, mLanguageFilter, time);
+		if (index == -1)
+			return -1;
+
+		for (int day = 0; day < mHeaderPositions.length; day++) {
+			int nextHeader = day + 1 < mHeaderPositions.length ? mHeaderPositions[day + 1] : mCount;
+			int position = index + day + 1;
+			if (position < nextHeader)
+				return position;
+		}
+		return -1;
+	}
+
+	private int dayForPosition(int position) {
+		int low = 0;
+		int high = mHeaderPositions.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) / 2;
+			if (mHeaderPositions[mid] <= position)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		return low;
+	}
+
+	private void load(final int page) {
+		int eventCount = mCount - mHeaders.length;
+		if (page < 0 || page * PAGE_SIZE >= eventCount)
+			return;
+		if (mPages.containsKey(page) || mPending.contains(page))
+			return;
+
+		mPending.add(page);
+		mDb.read(new Callable<List<ScheduleItem>>() {
+			@Override
+			public List<ScheduleItem> call() {
+				return loadPage(page);
+			}
+		}, new Database.ResultListener<List<ScheduleItem>>() {
+			@Override
+			public void onResult(List<ScheduleItem> items) {
+				mPending.remove(page);
+				boolean wanted = mWanted.remove(page);
+				if (items == null || mPages.containsKey(page))
+					return;
+				mPages.put(page, items);
+				if (wanted && mPageListener != null)
+					mPageListener.pageLoaded();
+			}
+		});
+	}
+
+	// Called on a reader thread
+	private List<ScheduleItem> loadPage(int page) {
+		List<Event> events = mDb.getSchedulePage(mConferenceId,
+												 mTrackFilter,
+												 mLanguageFilter,
+												 page * PAGE_SIZE,
+												 PAGE_SIZE);
+		List<ScheduleItem> items = new ArrayList<ScheduleItem>(events.size());
+		for (Event event : events) {
+			items.add(new ScheduleItem(event, false));
+		}
+		return items;
+	}
+}
@@ -10,33 +10,56 @@
  ******************************************************************************/
 package de.incoherent.suseconferenceclient.app;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import de.incoherent.suseconferenceclient.SUSEConferences;
+import de.incoherent.suseconferenceclient.models.ChangeSet;
 import de.incoherent.suseconferenceclient.models.Conference;
 
-import android.graphics.Color;
-import android.text.TextUtils;
 import android.util.Log;
 
 /**
- * Downloads all of the conference JSON and puts it in the database
+ * Downloads all of the conference JSON and puts it in the database,
+ * from the conference's bundle if it has one, or else file by file
  */
 public class ConferenceCacher {
+	// progress() is called from the download threads as well as the
+	// thread that called cacheConference()
 	public interface ConferenceCacherProgressListener {
 		public void progress(String progress);
 	}
 	
+	// venue.json, the venue's info text, rooms, tracks, speakers and events
+	private static final int DOWNLOAD_COUNT = 6;
+	// All of the above in one gzipped file, for servers that offer it.
+	// tools/make-bundle.py makes one from the separate files.
+	private static final String BUNDLE_NAME = "bundle.json.gz";
+	private static final int BUNDLE_VERSION = 1;
+	private static final int FETCH_THREADS = 4;
+	
 	private ConferenceCacherProgressListener mListener;
 	private String mErrorMessage = "";
+	private int mFetched = 0;
 	public ConferenceCacher(ConferenceCacherProgressListener listener) {
 		this.mListener = listener;
 	}
@@ -45,216 +68,278 @@ public class ConferenceCacher {
 		return mErrorMessage;
 	}
 	
-	public long cacheConference(Conference conference, Database db) {
-		
+	public long cacheConference(final Conference conference, final Database db) {
+		if (syncConference(conference, db, -1) == null)
+			return -1;
+		return conference.getSqlId();
+	}
+	
+	// Brings an already cached conference up to date, changing only what
+	// is different in the new download, and records the new revision.
+	// Returns what changed, or null if the update failed, in which case
+	// getLastError() says why and the database is as it was.
+	public ChangeSet updateConference(final Conference conference, final Database db, int revision) {
+		return syncConference(conference, db, revision);
+	}
+	
+	// A revision of -1 leaves the stored one as it is
+	private ChangeSet syncConference(final Conference conference, final Database db, final int revision) {
 		//String url = conference.getUrl();
 		String url = "https://conference.opensuse.org/osem/api/v1/conferences/gRNyOIsTbvCfJY5ENYovBA";
+		File bundleFile = new File(SUSEConferences.getContext().getCacheDir(), "bundle-" + conference.getSqlId() + ".json");
+		try {
+			JSONObject bundle = fetchBundle(url + "/" + BUNDLE_NAME, bundleFile);
+			if (bundle == null)
+				return syncFromEndpoints(conference, db, revision, url);
+
+			// The speakers and events are read from the unpacked file as
+			// they are stored, so they only pass through memory one at a time
+			return store(db, conference, revision,
+						 bundle.getJSONObject("venue"),
+						 bundle.getString("venue_info"),
+						 bundle,
+						 bundle,
+						 bundleFile,
+						 bundleFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+			mErrorMessage = e.getLocalizedMessage();
+		} catch (JSONException e) {
+			e.printStackTrace();
+			mErrorMessage = e.getLocalizedMessage();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			mErrorMessage = e.getCause().getLocalizedMessage();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			mErrorMessage = e.getLocalizedMessage();
+		} finally {
+			bundleFile.delete();
+		}
+		return null;
+	}
+	
+	// Downloads the conference's bundle, if it offers one, and unpacks it
+	// to the file.  Returns everything in it apart from the speakers and
+	// events, or null if there is no usable bundle and the separate files
+	// have to be downloaded instead.
+	private JSONObject fetchBundle(String bundleUrl, File file) throws IOException {
+		File packed = new File(file.getPath() + ".gz");
+		try {
+			Log.d("SUSEConferences", "Fetching bundle: " + bundleUrl);
+			publishProgress("schedule bundle");
+			HTTPWrapper.getToFile(bundleUrl, packed);
+		} catch (HttpResponseException e) {
+			if (e.getStatusCode() != HttpStatus.SC_NOT_FOUND && e.getStatusCode() != HttpStatus.SC_GONE)
+				throw e;
+			Log.d("SUSEConferences", "No bundle, fetching each file on its own");
+			return null;
+		}
+
+		try {
+			unpack(packed, file);
+			JSONObject bundle = JsonArrayReader.readWithout(file, "speakers", "events");
+			if (bundle.optInt("bundle_version") != BUNDLE_VERSION) {
+				Log.d("SUSEConferences", "Unknown bundle version " + bundle.opt("bundle_version") + ", fetching each file on its own");
+				return null;
+			}
+			if (!isComplete(bundle)) {
+				Log.d("SUSEConferences", "Incomplete bundle, fetching each file on its own");
+				return null;
+			}
+			return bundle;
+		} catch (ZipException e) {
+			Log.d("SUSEConferences", "Damaged bundle, fetching each file on its own: " + e.getMessage());
+			return null;
+		} catch (EOFException e) {
+			// The download was cut short, either in the gzip stream or the JSON
+			Log.d("SUSEConferences", "Truncated bundle, fetching each file on its own");
+			return null;
+		} catch (JSONException e) {
+			Log.d("SUSEConferences", "Unreadable bundle, fetching each file on its own: " + e.getMessage());
+			return null;
+		} finally {
+			packed.delete();
+		}
+	}
+	
+	// Everything syncConference takes out of the bundle; the speakers and
+	// events themselves are read later, as they are stored
+	private static boolean isComplete(JSONObject bundle) {
+		return bundle.optJSONObject("venue") != null
+				&& !bundle.isNull("venue_info")
+				&& bundle.optJSONArray("rooms") != null
+				&& bundle.optJSONArray("tracks") != null
+				&& bundle.has("speakers")
+				&& bundle.has("events");
+	}
+	
+	// The bundle is normally stored gzipped and served as is, but if the
+	// server sent it with Content-Encoding: gzip it has already been
+	// unpacked on the way in
+	private static void unpack(File packed, File to) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(packed));
+		in.mark(2);
+		boolean gzipped = in.read() == 0x1f && in.read() == 0x8b;
+		in.reset();
+		if (gzipped)
+			in = new GZIPInputStream(in, 8192);
+
+		boolean success = false;
+		OutputStream out = new FileOutputStream(to);
+		try {
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+			success = true;
+		} finally {
+			in.close();
+			out.close();
+			if (!success)
+				to.delete();
+		}
+	}
+	
+	private ChangeSet syncFromEndpoints(final Conference conference, final Database db, final int revision, String url)
+			throws IOException, JSONException, ExecutionException, InterruptedException {
 		String eventsUrl = url + "/events.json";
 		String roomsUrl = url + "/rooms.json";
 		String speakersUrl = url + "/speakers.json";
 		String tracksUrl = url + "/tracks.json";
 		String venueUrl = url + "/venue.json";
-		Long returnVal = null;
-		HashMap<String, Long> roomMap = new HashMap<String, Long>();
-		HashMap<String, Long> trackMap = new HashMap<String, Long>();
-		HashMap<String, Long> speakerMap = new HashMap<String, Long>();
-
+		// The speakers and events can be big, so they go to disk and are
+		// read back an entry at a time rather than parsed in one piece
+		File cacheDir = SUSEConferences.getContext().getCacheDir();
+		final File speakersFile = new File(cacheDir, "speakers-" + conference.getSqlId() + ".json");
+		final File eventsFile = new File(cacheDir, "events-" + conference.getSqlId() + ".json");
+		// Every download runs on its own thread, apart from the info
+		// text, which has to wait for venue.json to say where it is
+		ExecutorService fetcher = Executors.newFixedThreadPool(FETCH_THREADS);
 		try {
-			Log.d("SUSEConferences", "Venues: " + venueUrl);
-			publishProgress("venues");
-			JSONObject venueReply = HTTPWrapper.get(venueUrl);
-			JSONObject venue = venueReply.getJSONObject("venue");
+			// Download everything first, so the database transaction
+			// below isn't held open while waiting on the network
+			mFetched = 0;
+			Future<JSONObject> venueFetch = fetcher.submit(fetchJson("venues", venueUrl));
+			Future<JSONObject> roomsFetch = fetcher.submit(fetchJson("rooms", roomsUrl));
+			Future<JSONObject> tracksFetch = fetcher.submit(fetchJson("tracks", tracksUrl));
+			Future<File> speakersFetch = fetcher.submit(fetchFile("speakers", speakersUrl, speakersFile));
+			Future<File> eventsFetch = fetcher.submit(fetchFile("events", eventsUrl, eventsFile));
+
+			JSONObject venue = venueFetch.get().getJSONObject("venue");
 			String infoUrl = url + "/" + venue.getString("info_text");
 			Log.d("Application Url","INFO URL: "+infoUrl);
-			String info = HTTPWrapper.getRawText(infoUrl);
-			String venueName = venue.getString("name");
-			String venueAddr =  venue.getString("address");
-			String offlineMap = "";
-			String offlineMapBounds = "";
-			if (venue.has("offline_map")) {
-				offlineMap = venue.getString("offline_map");
-				offlineMapBounds = venue.getString("offline_map_bounds");
-			}
+			String info = fetcher.submit(fetchText("venue information", infoUrl)).get();
+			JSONObject roomsReply = roomsFetch.get();
+			JSONObject tracksReply = tracksFetch.get();
+			speakersFetch.get();
+			eventsFetch.get();
 
-			long venueId = db.insertVenue(venue.getString("guid"),
-					venueName,
-					venueAddr,
-					offlineMap,
-					offlineMapBounds,
-					info);
-			JSONArray mapPoints = venue.getJSONArray("map_points");
-			int mapLen = mapPoints.length();
-			for (int i = 0; i < mapLen; i++) {
-				JSONObject point = mapPoints.getJSONObject(i);
-				String lat = point.getString("lat");
-				String lon = point.getString("lon");
-				String type = point.getString("type");
-				String name = "Unknown Point";
-				String addr = "Unknown Address";
-				String desc = "";
-
-				if (point.has("name")) {
-					name = point.getString("name");
-				}
-				if (point.has("address")) {
-					addr = point.getString("address");
-				}
-				if (point.has("description")) {
-					desc = point.getString("description");
-				}
-
-				db.insertVenuePoint(venueId, lat, lon, type, name, addr, desc);
-			}
-
-			if (venue.has("map_polygons")) {
-				JSONArray polygons = venue.getJSONArray("map_polygons");
-				int polygonLen = polygons.length();
-				for (int j = 0; j < polygonLen; j++) {
-					JSONObject polygon = polygons.getJSONObject(j);
-					String name = polygon.getString("name");
-					String label = polygon.getString("label");
-					String lineColorStr = polygon.getString("line_color");
-					String fillColorStr = "#00000000";
-					if (polygon.has("fill_color"))
-						fillColorStr = polygon.getString("fill_color");
-
-					List<String> stringList = new ArrayList<String>();
-					JSONArray points = polygon.getJSONArray("points");
-					int pointsLen = points.length();
-					for (int k = 0; k < pointsLen; k++) {
-						String newPoint = points.getString(k);
-						stringList.add(newPoint);
-					}
-					String joined = TextUtils.join(";", stringList);	    				
-					int lineColor = Color.parseColor(lineColorStr);
-					int fillColor = Color.parseColor(fillColorStr);
-					db.insertVenuePolygon(venueId, name, label, lineColor, fillColor, joined);
-				}
-			}
-
-			db.setConferenceVenue(venueId, conference.getSqlId());
-
-			Log.d("SUSEConferences", "Rooms");
-			publishProgress("rooms");
-			JSONObject roomsReply = HTTPWrapper.get(roomsUrl);
-			Log.d("Rooms of the event","ROOMS URL: "+roomsUrl);
-			JSONArray rooms = roomsReply.getJSONArray("rooms");
-			int roomsLen = rooms.length();
-			for (int i = 0; i < roomsLen; i++) {
-				JSONObject room = rooms.getJSONObject(i);
-				String guid = room.getString("guid");
-				Long roomId = db.insertRoom(guid,
-						room.getString("name"),
-						room.getString("description"),
-						venueId);
-				roomMap.put(guid, roomId);
+			return store(db, conference, revision, venue, info, roomsReply, tracksReply, speakersFile, eventsFile);
+		} finally {
+			// Don't leave the other downloads running if one of them failed
+			fetcher.shutdownNow();
+			speakersFile.delete();
+			eventsFile.delete();
+		}
+	}
+	
+	private ChangeSet store(final Database db,
+							final Conference conference,
+							final int revision,
+							final JSONObject venue,
+							final String info,
+							final JSONObject roomsReply,
+							final JSONObject tracksReply,
+							final File speakersFile,
+							final File eventsFile) throws ExecutionException, InterruptedException {
+		publishProgress("schedule into the database");
+		// The inserts run on the database's writer thread, behind any
+		// other write that is already queued
+		Future<ChangeSet> stored = db.write(new Callable<ChangeSet>() {
+			@Override
+			public ChangeSet call() throws IOException, JSONException {
+				return storeConference(db, conference, revision, venue, info, roomsReply, tracksReply, speakersFile, eventsFile);
 			}
-			Log.d("SUSEConferences", "Tracks");
-			publishProgress("tracks");
-			JSONObject tracksReply = HTTPWrapper.get(tracksUrl);
-			Log.d("Event tracks","Tracks: "+tracksUrl);
-			JSONArray tracks = tracksReply.getJSONArray("tracks");
-			int tracksLen = tracks.length();
-			for (int i = 0; i < tracksLen; i++) {
-				JSONObject track = tracks.getJSONObject(i);
-				String guid = track.getString("guid");
-				Long trackId = db.insertTrack(guid,
-						track.getString("name"),
-						track.getString("color"),
-						conference.getSqlId());
-				trackMap.put(guid, trackId);
+		});
+		return stored.get();
+	}
+	
+	// Puts the downloaded JSON into the database in one transaction,
+	// touching only what differs from what is already there.  The
+	// conference is only marked as cached, and its revision moved on, in
+	// that same transaction, so readers see either the old schedule or the
+	// whole new one, and a failure leaves the old one untouched.  This runs
+	// on the database's writer thread.
+	private ChangeSet storeConference(Database db,
+									  Conference conference,
+									  int revision,
+									  JSONObject venue,
+									  String info,
+									  JSONObject roomsReply,
+									  JSONObject tracksReply,
+									  File speakersFile,
+									  File eventsFile) throws IOException, JSONException {
+		db.beginBulkInsert();
+		boolean success = false;
+		try {
+			ChangeSet changes = new ScheduleDiff(db, conference.getSqlId()).apply(venue,
+					info,
+					roomsReply,
+					tracksReply,
+					speakersFile,
+					eventsFile);
+			db.setConferenceAsCached(conference.getSqlId(), 1);
+			if (revision != -1)
+				db.setLastUpdateValue(conference.getSqlId(), revision);
+			success = true;
+			return changes;
+		} finally {
+			db.endBulkInsert(success);
+		}
+	}
+	
+	private Callable<JSONObject> fetchJson(final String name, final String url) {
+		return new Callable<JSONObject>() {
+			@Override
+			public JSONObject call() throws Exception {
+				Log.d("SUSEConferences", "Fetching " + name + ": " + url);
+				JSONObject reply = HTTPWrapper.get(url);
+				fetched(name);
+				return reply;
 			}
-			Log.d("SUSEConferences", "Speakers");
-			publishProgress("speakers");
-			JSONObject speakersReply = HTTPWrapper.get(speakersUrl);
-			JSONArray speakers = speakersReply.getJSONArray("speakers");
-			int speakersLen = speakers.length();
-			for (int i = 0; i < speakersLen; i++) {
-				JSONObject speaker = speakers.getJSONObject(i);
-				String guid = speaker.getString("guid");
-				Long speakerId = db.insertSpeaker(guid,
-						speaker.getString("name"),
-						speaker.getString("company"),
-						speaker.getString("biography"),
-						"");
-				speakerMap.put(guid, speakerId);
-				
-				
+		};
+	}
+	
+	private Callable<File> fetchFile(final String name, final String url, final File file) {
+		return new Callable<File>() {
+			@Override
+			public File call() throws Exception {
+				Log.d("SUSEConferences", "Fetching " + name + ": " + url);
+				HTTPWrapper.getToFile(url, file);
+				fetched(name);
+				return file;
 			}
-
-			Log.d("SUSEConferences", "Events");
-			publishProgress("events");
-			JSONObject eventsReply = HTTPWrapper.get(eventsUrl);
-			JSONArray events = eventsReply.getJSONArray("events");
-			int eventsLen = events.length();
-			for (int i = 0; i < eventsLen; i++) {
-				JSONObject event = events.getJSONObject(i);
-				String guid = event.getString("guid");
-				String track = event.getString("track");
-				Long trackId = trackMap.get(track);
-				Long roomId = roomMap.get(event.getString("room"));
-				if (track.equals("meta")) {
-					// The "meta" track is used to insert information
-					// into the schedule that automatically appears on "my schedule",
-					// and also isn't clickable.
-					db.insertEvent(guid,
-							conference.getSqlId(),
-							roomId.longValue(),
-							trackId.longValue(),
-							event.getString("date"),
-							event.getInt("length"),
-							"",
-							"",
-							event.getString("title"),
-							"",
-							"");
-				} else {
-					Long eventId = db.insertEvent(guid,
-							conference.getSqlId(),
-							roomId.longValue(),
-							trackId.longValue(),
-							event.getString("date"),
-							event.getInt("length"),
-							event.getString("type"),
-							event.getString("language"),
-							event.getString("title"),
-							event.getString("abstract"),
-							"");
-
-					JSONArray eventSpeakers = event.getJSONArray("speaker_ids");
-					int eventSpeakersLen = eventSpeakers.length();
-					for (int j = 0; j < eventSpeakersLen; j++) {
-						Long speakerId = speakerMap.get(eventSpeakers.getString(j));
-						if (speakerId != null)
-							db.insertEventSpeaker(speakerId, eventId);
-					}
-				}
+		};
+	}
+	
+	private Callable<String> fetchText(final String name, final String url) {
+		return new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				Log.d("SUSEConferences", "Fetching " + name + ": " + url);
+				String reply = HTTPWrapper.getRawText(url);
+				fetched(name);
+				return reply;
 			}
-		} catch (IllegalStateException e) {
-			e.printStackTrace();
-			mErrorMessage = e.getLocalizedMessage();
-			returnVal = Long.valueOf(-1);
-		} catch (SocketException e) {
-			e.printStackTrace();
-			mErrorMessage = e.getLocalizedMessage();
-			returnVal = Long.valueOf(-1);
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
-			mErrorMessage = e.getLocalizedMessage();
-			returnVal = Long.valueOf(-1);
-		} catch (IOException e) {
-			e.printStackTrace();
-			mErrorMessage = e.getLocalizedMessage();
-			returnVal = Long.valueOf(-1);
-		} catch (JSONException e) {
-			e.printStackTrace();
-			mErrorMessage = e.getLocalizedMessage();
-			returnVal = Long.valueOf(-1);
-		} 
-
-		if (returnVal == null)
-			returnVal = conference.getSqlId();
-		return returnVal;
+		};
+	}
+	
+	// Called on the download threads as each one finishes
+	private synchronized void fetched(String name) {
+		mFetched++;
+		publishProgress(name + " (" + mFetched + " of " + DOWNLOAD_COUNT + " downloaded)");
 	}
 	
 	private void publishProgress(String message) {
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Matt Barringer <matt@incoherent.de>.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Matt Barringer <matt@incoherent.de> - initial API and implementation
+ ******************************************************************************/
+
+package de.incoherent.suseconferenceclient.app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import de.incoherent.suseconferenceclient.models.Event;
+
+/*
+ * The events of one conference, as the schedule screens show them, loaded once
+ * and shared between them.  A snapshot is never changed after it is built:
+ * when the data underneath it changes, Database builds a new one and the
+ * screens pick it up the next time they ask.  Nothing should call the
+ * setters on the events it hands out.
+ */
+public class ConferenceSnapshot {
+	private final long mConferenceId;
+	private final int mRevision;
+	private final int mGeneration;
+	private final List<Event> mEvents;
+	private final HashMap<Long, Event> mEventMap;
+
+	ConferenceSnapshot(long conferenceId, int revision, int generation, List<Event> events) {
+		this.mConferenceId = conferenceId;
+		this.mRevision = revision;
+		this.mGeneration = generation;
+		List<Event> sorted = new ArrayList<Event>(events);
+		Collections.sort(sorted);
+		this.mEvents = Collections.unmodifiableList(sorted);
+		this.mEventMap = new HashMap<Long, Event>();
+		for (Event e : sorted) {
+			mEventMap.put(e.getSqlId(), e);
+		}
+	}
+
+	boolean isCurrent(long conferenceId, int revision, int generation) {
+		return mConferenceId == conferenceId && mRevision == revision && mGeneration == generation;
+	}
+
+	// A copy of this snapshot with one event's My Schedule flag changed.
+	// Only that event is copied, everything else is shared.
+	ConferenceSnapshot withFavorite(long eventId, boolean inMySchedule, int generation) {
+		List<Event> events = new ArrayList<Event>(mEvents.size());
+		for (Event e : mEvents) {
+			if (e.getSqlId() == eventId) {
+				Event copy = new Event(e);
+				copy.setInMySchedule(inMySchedule);
+				events.add(copy);
+			} else {
+				events.add(e);
+			}
+		}
+		return new ConferenceSnapshot(mConferenceId, mRevision, generation, events);
+	}
+
+	public long getConferenceId() {
+		return mConferenceId;
+	}
+
+	public int getRevision() {
+		return mRevision;
+	}
+
+	// Every event of the conference, sorted by start time
+	public List<Event> getEvents() {
+		return mEvents;
+	}
+
+	public Event getEvent(long eventId) {
+		return mEventMap.get(eventId);
+	}
+
+	// The events with the given _ids, in the order the ids are given
+	// (e.g. search results, best match first)
+	public List<Event> getEvents(List<String> ids) {
+		List<Event> ret = new ArrayList<Event>(ids.size());
+		for (String id : ids) {
+			Event e = mEventMap.get(Long.valueOf(id));
+			if (e != null)
+				ret.add(e);
+		}
+		return ret;
+	}
+}
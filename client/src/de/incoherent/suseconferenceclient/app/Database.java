@@ -11,27 +11,37 @@
 
 package de.incoherent.suseconferenceclient.app;
 
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import de.incoherent.suseconferenceclient.models.Conference;
 import de.incoherent.suseconferenceclient.models.Event;
+import de.incoherent.suseconferenceclient.models.Facet;
+import de.incoherent.suseconferenceclient.models.ScheduleDay;
 import de.incoherent.suseconferenceclient.models.Speaker;
-import de.incoherent.suseconferenceclient.models.Track;
 import de.incoherent.suseconferenceclient.models.Venue;
 import de.incoherent.suseconferenceclient.models.Venue.MapPoint;
 import de.incoherent.suseconferenceclient.models.Venue.MapPolygon;
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -44,6 +54,40 @@ public class Database {
 	private DatabaseHelper helper;
 	private SQLiteDatabase db;
 	private static Database instance = null;
+	private static final HashMap<Integer, TimeZone> sTimeZones = new HashMap<Integer, TimeZone>();
+	
+	// What parseEventDate() returns for a date it can't read
+	static final long NO_DATE = Long.MIN_VALUE;
+	
+	private static final int INSERT_VENUE = 0;
+	private static final int INSERT_POINT = 1;
+	private static final int INSERT_POLYGON = 2;
+	private static final int INSERT_ROOM = 3;
+	private static final int INSERT_TRACK = 4;
+	private static final int INSERT_SPEAKER = 5;
+	private static final int INSERT_EVENT = 6;
+	private static final int INSERT_EVENT_SPEAKER = 7;
+	private final SQLiteStatement[] mStatements = new SQLiteStatement[8];
+	private final String[] mStatementSql = new String[8];
+	
+	// The snapshot of the conference that was last asked for, and a counter
+	// that is bumped by every write that could make a snapshot out of date
+	private final Object mSnapshotLock = new Object();
+	private ConferenceSnapshot mSnapshot = null;
+	private int mGeneration = 0;
+
+	// Every write goes through the one writer thread, so writers queue up
+	// here instead of on the database lock.  Reads run on a small pool;
+	// with write-ahead logging they don't wait for the writer at all.
+	private static final int READER_THREADS = 2;
+	private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+	private final ExecutorService mReaders = Executors.newFixedThreadPool(READER_THREADS);
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	
+	// Gets the result of a read() or write() back on the main thread
+	public interface ResultListener<T> {
+		public void onResult(T result);
+	}
 
 	public final static Database getInstance(Context ctx) {
 		if (instance == null)
@@ -57,26 +101,149 @@ public class Database {
 	
 	public void open() throws SQLException {
 		db = helper.getWritableDatabase();
+		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB) {
+			enableWriteAheadLogging();
+		}
+	}
+	
+	// Lets queries run on their own connections while a transaction is open
+	// on another thread.  Before Honeycomb there's only the one connection,
+	// so reads still wait for a running sync, just not on the main thread.
+	@TargetApi(11)
+	private void enableWriteAheadLogging() {
+		if (!db.enableWriteAheadLogging())
+			Log.d("SUSEConferences", "Write-ahead logging is not available");
+	}
+	
+	// Run a query on the reader pool
+	public <T> Future<T> read(Callable<T> query) {
+		return mReaders.submit(timed(query));
+	}
+	
+	public <T> void read(Callable<T> query, ResultListener<T> listener) {
+		mReaders.execute(deliver(timed(query), listener));
+	}
+	
+	// Run an insert, update or delete on the writer thread.  Anything
+	// that writes, and isn't already on the writer thread, should go
+	// through here.  Don't wait on the Future from the writer thread
+	// itself, it will never finish.
+	public <T> Future<T> write(Callable<T> update) {
+		return mWriter.submit(timed(update));
+	}
+	
+	public <T> void write(Callable<T> update, ResultListener<T> listener) {
+		mWriter.execute(deliver(timed(update), listener));
+	}
+	
+	// Every task run on the reader pool or the writer thread is one call
+	// for QueryStats, named after the method that queued it, and the
+	// statements it runs count towards it
+	private <T> Callable<T> timed(final Callable<T> task) {
+		if (!QueryStats.isEnabled())
+			return task;
+		final String name = QueryStats.taskName(task);
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				QueryStats.Call call = QueryStats.begin(name);
+				try {
+					return task.call();
+				} finally {
+					QueryStats.end(call);
+				}
+			}
+		};
+	}
+	
+	private Runnable timed(final Runnable task) {
+		if (!QueryStats.isEnabled())
+			return task;
+		final String name = QueryStats.taskName(task);
+		return new Runnable() {
+			@Override
+			public void run() {
+				QueryStats.Call call = QueryStats.begin(name);
+				try {
+					task.run();
+				} finally {
+					QueryStats.end(call);
+				}
+			}
+		};
+	}
+	
+	// Runs the callable and posts its result to the listener on the main
+	// thread.  The listener gets null if the callable threw.
+	private <T> Runnable deliver(final Callable<T> callable, final ResultListener<T> listener) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				T result = null;
+				try {
+					result = callable.call();
+				} catch (Exception e) {
+					Log.d("SUSEConferences", "Database task failed: " + e.getMessage());
+				}
+				final T ret = result;
+				if (listener != null) {
+					mMainHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							listener.onResult(ret);
+						}
+					});
+				}
+			}
+		};
 	}
 
 	public void close() {
+		closeStatements();
 		helper.close();
 	}
 	
-	public void clearDatabase(long conferenceId) {
-		helper.clearDatabase(db, conferenceId);
+	// Returns the events of a conference.  The snapshot
+	// is only rebuilt when the conference's revision changes or something
+	// has been written to the database since it was built.
+	public ConferenceSnapshot getSnapshot(long conferenceId) {
+		int revision = getLastUpdateValue(conferenceId);
+		int generation;
+		synchronized (mSnapshotLock) {
+			if (mSnapshot != null && mSnapshot.isCurrent(conferenceId, revision, mGeneration))
+				return mSnapshot;
+			generation = mGeneration;
+		}
+	
+		ConferenceSnapshot snapshot = new ConferenceSnapshot(conferenceId,
+				revision,
+				generation,
+				getScheduleTitles(conferenceId));
+		synchronized (mSnapshotLock) {
+			// Don't keep it if there was a write while it was being built
+			if (generation == mGeneration)
+				mSnapshot = snapshot;
+		}
+		return snapshot;
+	}
+	
+	private void invalidateSnapshot() {
+		synchronized (mSnapshotLock) {
+			mGeneration++;
+			mSnapshot = null;
+		}
 	}
 	
 	public void setConferenceVenue(long venueId, long conferenceId) {
 		ContentValues values = new ContentValues();
 		values.put("venue_id", venueId);
-		db.update("conferences", values, "_id = " + conferenceId, null);		
+		update("conferences", values, "_id = ?", new String[] { String.valueOf(conferenceId) });
 	}
 	
 	public List<Conference> getConferenceList() {
 		List<Conference> ret = new ArrayList<Conference>();
 		String sql = "SELECT _id, guid, name, description, year, social_tag, dateRange, is_cached, url FROM conferences";
-		Cursor c = db.rawQuery(sql, null);
+		Cursor c = rawQuery(sql, null);
 		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
 			Conference newConference = new Conference();
 			newConference.setSqlId(c.getLong(0));
@@ -90,13 +257,14 @@ public class Database {
 			newConference.setUrl(c.getString(8));
 			ret.add(newConference);
 		}
+		c.close();
 		return ret;
 	}
 	
 	public Conference getConference(long conferenceId) {
 		Conference newConference = null;
-		String sql = "SELECT guid, name, description, year, social_tag, dateRange, is_cached, url FROM conferences WHERE _id=" + conferenceId;
-		Cursor c = db.rawQuery(sql, null);
+		String sql = "SELECT guid, name, description, year, social_tag, dateRange, is_cached, url FROM conferences WHERE _id = ?";
+		Cursor c = rawQuery(sql, new String[] { String.valueOf(conferenceId) });
 		if (c.moveToFirst()) {
 			newConference = new Conference();
 			newConference.setGuid(c.getString(0));
@@ -108,16 +276,16 @@ public class Database {
 			newConference.setSqlId(conferenceId);
 			newConference.setIsCached((c.getInt(6) == 1));
 			newConference.setUrl(c.getString(7));
-
 		}
-		
+		c.close();
+	
 		return newConference;
 	}
 	
 	public int getLastUpdateValue(long conferenceId) {
 		int time = 0;
-		String sql = "SELECT lastUpdated FROM conferences WHERE _id=" + conferenceId;
-		Cursor c = db.rawQuery(sql, null);
+		String sql = "SELECT lastUpdated FROM conferences WHERE _id = ?";
+		Cursor c = rawQuery(sql, new String[] { String.valueOf(conferenceId) });
 		if (c.moveToFirst()) {
 			time = c.getInt(0);
 		}
@@ -125,24 +293,35 @@ public class Database {
 		return time;
 	}
 	
+	// The start of the first event and the end of the last one, in
+	// milliseconds, or null if the conference has no events
+	public long[] getScheduleSpan(long conferenceId) {
+		long[] span = null;
+		String sql = "SELECT MIN(start_ms), MAX(end_ms) FROM events WHERE conference_id = ?";
+		Cursor c = rawQuery(sql, new String[] { String.valueOf(conferenceId) });
+		if (c.moveToFirst() && !c.isNull(0) && !c.isNull(1)) {
+			span = new long[] { c.getLong(0), c.getLong(1) };
+		}
+		c.close();
+		return span;
+	}
+
 	public void setLastUpdateValue(long conferenceId, int value) {
-		String sql = "_id=" + conferenceId;
 		ContentValues values = new ContentValues();
 		values.put("lastUpdated", value);
-		db.update("conferences", values, sql, null);
+		update("conferences", values, "_id = ?", new String[] { String.valueOf(conferenceId) });
 	}
 	
 	public void setConferenceAsCached(long conferenceId, int isCached) {
-		String sql = "_id=" + conferenceId;
 		ContentValues values = new ContentValues();
 		values.put("is_cached", isCached);
-		db.update("conferences", values, sql, null);
+		update("conferences", values, "_id = ?", new String[] { String.valueOf(conferenceId) });
 	}
 
 	public long getConferenceVenue(long conferenceId) {
 		long id = -1;
-		String sql = "SELECT venue_id FROM conferences WHERE _id=" + conferenceId;
-		Cursor c = db.rawQuery(sql, null);
+		String sql = "SELECT venue_id FROM conferences WHERE _id = ?";
+		Cursor c = rawQuery(sql, new String[] { String.valueOf(conferenceId) });
 		if (c.moveToFirst()) {
 			id = c.getLong(0);
 		}
@@ -152,10 +331,11 @@ public class Database {
 	
 	public Venue getVenueInfo(long venueId) {
 		Venue venue = null;
-		String sql = "SELECT name, address, info_text, offline_map, offline_map_bounds FROM venues WHERE _id=" + venueId;
-		String pointSql = "SELECT type, lat, lon, name, address, description FROM points WHERE venue_id=" + venueId;
-		String polygonSql = "SELECT name, label, lineColor, fillColor, pointList FROM mapPolygons WHERE venue_id=" + venueId;
-		Cursor c = db.rawQuery(sql, null);
+		String sql = "SELECT name, address, info_text, offline_map, offline_map_bounds FROM venues WHERE _id = ?";
+		String pointSql = "SELECT type, lat_e6, lon_e6, name, address, description FROM points WHERE venue_id = ?";
+		String polygonSql = "SELECT name, label, lineColor, fillColor, ring FROM mapPolygons WHERE venue_id = ?";
+		String[] args = new String[] { String.valueOf(venueId) };
+		Cursor c = rawQuery(sql, args);
 		if (c.moveToFirst()) {
 			Log.d("SUSEConferences", "Moving to the first entry in the DB");
 			venue = new Venue(c.getString(0), c.getString(1), c.getString(2));
@@ -163,15 +343,15 @@ public class Database {
 			venue.setOfflineMapBounds(c.getString(4));
 		}
 		c.close();
-		
+	
 		if (venue == null)
 			return null;
-		
-		c = db.rawQuery(pointSql, null);
+	
+		c = rawQuery(pointSql, args);
 		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
 			String typeStr = c.getString(0);
-			int lat = getLatLon(c.getString(1));
-			int lon = getLatLon(c.getString(2));
+			int lat = c.getInt(1);
+			int lon = c.getInt(2);
 			int type = 0;
 			if (typeStr.equals("venue"))
 				type = MapPoint.TYPE_VENUE;
@@ -185,7 +365,7 @@ public class Database {
 				type = MapPoint.TYPE_PARTY;
 			else if (typeStr.equals("hotel"))
 				type = MapPoint.TYPE_HOTEL;
-			
+		
 			MapPoint newPoint = venue.new MapPoint(type, lat, lon);
 			newPoint.setName(c.getString(3));
 			newPoint.setAddress(c.getString(4));
@@ -193,72 +373,147 @@ public class Database {
 			venue.addPoint(newPoint);
 		}
 		c.close();
-		
-		c = db.rawQuery(polygonSql, null);
+	
+		c = rawQuery(polygonSql, args);
 		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
 			String name = c.getString(0);
 			String label = c.getString(1);
 			int lineColor = c.getInt(2);
 			int fillColor = c.getInt(3);
-			String points = c.getString(4);
-			
+		
 			MapPolygon newPolygon = venue.new MapPolygon(name, label, lineColor, fillColor);
-			String[] splitStr = TextUtils.split(points, ";");
-			for (int i = 0; i < splitStr.length; i++) {
-				String[] coOrds = TextUtils.split(splitStr[i], ",");
-				int lon = getLatLon(coOrds[0]);
-				int lat = getLatLon(coOrds[1]);
-
-				MapPoint newMapPoint = venue.new MapPoint(MapPoint.TYPE_NONE, lat, lon); 
-				newPolygon.addPoint(newMapPoint);
-			}
+			newPolygon.setCoordinates(unpackRing(c.getBlob(4)));
 			venue.addPolygon(newPolygon);
 		}
+		c.close();
 		return venue;
 	}
 	
-	public int getLatLon(String str) {
-		double val = Double.parseDouble(str);
-		int ret = (int) (val * 1E6);
-		return ret;
+	// Coordinates are stored as integer degrees * 1E6.  A polygon's vertices
+	// are stored in one blob, the "ring": big-endian 32 bit ints, latitude
+	// then longitude for each point.
+	static int toE6(String degrees) {
+		return (int) (Double.parseDouble(degrees.trim()) * 1E6);
 	}
 	
-	public void toggleEventInMySchedule(long eventId, int val) {
-		String sql = "_id=" + eventId;
-		ContentValues values = new ContentValues();
-		values.put("my_schedule", val);
-		db.update("events", values, sql, null);
+	static byte[] packRing(int[] coordinates) {
+		ByteBuffer buffer = ByteBuffer.allocate(coordinates.length * 4);
+		buffer.asIntBuffer().put(coordinates);
+		return buffer.array();
+	}
+	
+	static int[] unpackRing(byte[] ring) {
+		if (ring == null)
+			return new int[0];
+		int[] coordinates = new int[ring.length / 4];
+		ByteBuffer.wrap(ring).asIntBuffer().get(coordinates);
+		return coordinates;
+	}
+	
+	// Parses one "lon,lat" point as the API sends it
+	static void parsePoint(String point, int[] coordinates, int index) {
+		int comma = point.indexOf(',');
+		coordinates[index * 2 + 1] = toE6(point.substring(0, comma));
+		coordinates[index * 2] = toE6(point.substring(comma + 1));
+	}
+	
+	// Parses a "lon,lat;lon,lat" point list, as polygons were stored
+	// before version 9 of the database
+	static int[] parsePointList(String pointList) {
+		if (pointList == null || pointList.length() == 0)
+			return new int[0];
+		String[] points = TextUtils.split(pointList, ";");
+		int[] coordinates = new int[points.length * 2];
+		for (int i = 0; i < points.length; i++) {
+			parsePoint(points[i], coordinates, i);
+		}
+		return coordinates;
+	}
+	
+	// The user state setters below are called from the main thread, so the
+	// writes are queued on the writer thread rather than waiting for it
+	public void toggleEventInMySchedule(final long eventId, final int val) {
+		// The snapshot is changed straight away so the screens show the new
+		// state, and again once it's written, in case the snapshot was
+		// reloaded from the database in between
+		setSnapshotFavorite(eventId, val != 0);
+		mWriter.execute(timed(new Runnable() {
+			@Override
+			public void run() {
+				setUserState(eventId, "favorite", val);
+				setSnapshotFavorite(eventId, val != 0);
+			}
+		}));
+	}
+	
+	// Swap in a copy of the snapshot with just this event changed,
+	// rather than reloading the whole conference
+	private void setSnapshotFavorite(long eventId, boolean inMySchedule) {
+		synchronized (mSnapshotLock) {
+			mGeneration++;
+			if (mSnapshot != null && mSnapshot.getEvent(eventId) != null)
+				mSnapshot = mSnapshot.withFavorite(eventId, inMySchedule, mGeneration);
+			else
+				mSnapshot = null;
+		}
 	}
 
 	public void toggleEventAlert(long eventId, int val) {
-		String sql = "_id=" + eventId;
-		ContentValues values = new ContentValues();
-		values.put("alert", val);
-		db.update("events", values, sql, null);
+		queueUserState(eventId, "alert", val);
 	}
 	
-	public void toggleEventsInMySchedule(List<String> guids) {
-		String in = TextUtils.join(",", guids);
-		String sql = "UPDATE events SET my_schedule = 1 WHERE guid IN (" + in +")";
-		Log.d("SUSEConferences", "Toggling events: " + sql);
-		Cursor c = db.rawQuery(sql, null);
-		c.moveToFirst();
+	// The id of the calendar entry made for an event, or -1
+	public long getEventCalendarId(long eventId) {
+		long id = -1;
+		String sql = "SELECT calendar_id FROM userState WHERE " + USER_STATE_FOR_EVENT;
+		String event = String.valueOf(eventId);
+		Cursor c = rawQuery(sql, new String[] { event, event });
+		if (c.moveToFirst())
+			id = c.getLong(0);
 		c.close();
+		return id;
 	}
 	
-	public void toggleEventAlerts(List<String> guids) {
-		String in = TextUtils.join(",", guids);
-		String sql = "UPDATE events SET alert = 1 WHERE guid IN (" + in +")";
-		Cursor c = db.rawQuery(sql, null);
-		c.moveToFirst();
-		c.close();
+	public void setEventCalendarId(long eventId, long calendarId) {
+		queueUserState(eventId, "calendar_id", calendarId);
+	}
+	
+	private void queueUserState(final long eventId, final String column, final long value) {
+		mWriter.execute(timed(new Runnable() {
+			@Override
+			public void run() {
+				setUserState(eventId, column, value);
+			}
+		}));
+	}
+	
+	// Selects the userState row of an event.  Takes the event's _id twice.
+	private static final String USER_STATE_FOR_EVENT = "conference_guid = "
+			+ "(SELECT conferences.guid FROM events INNER JOIN conferences ON conferences._id = events.conference_id "
+			+ "WHERE events._id = ?) AND event_guid = (SELECT guid FROM events WHERE _id = ?)";
+	
+	// User state lives in its own table, keyed by the conference and event
+	// guids, so that it outlives the event rows; see DatabaseHelper.
+	private void setUserState(long eventId, String column, long value) {
+		String event = String.valueOf(eventId);
+		db.beginTransaction();
+		try {
+			execSQL("INSERT OR IGNORE INTO userState (conference_guid, event_guid) "
+					+ "SELECT conferences.guid, events.guid FROM events "
+					+ "INNER JOIN conferences ON conferences._id = events.conference_id "
+					+ "WHERE events._id = ?", new Object[] { event });
+			execSQL("UPDATE userState SET " + column + " = ? WHERE " + USER_STATE_FOR_EVENT,
+					new Object[] { value, event, event });
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
 	}
 
 	public long getConferenceIdFromGuid(String guid) {
-		String[] columns = {"_id"};
-		String where = "guid = \"" + guid + "\"";
-		Cursor c = db.query("conferences", columns, where, null, null, null, null);
+		Cursor c = rawQuery("SELECT _id FROM conferences WHERE guid = ?", new String[] { guid });
 		if (c.getCount() == 0) {
+			c.close();
 			return -1;
 		}
 		c.moveToNext();
@@ -276,83 +531,264 @@ public class Database {
 		values.put("description", conference.getDescription());
 		values.put("social_tag", conference.getSocialTag());
 		values.put("url", conference.getUrl());
-		long insertId = db.insert("conferences", null, values);
+		long insertId = insert("conferences", values);
 		return insertId;
 	}
 	
-	public long insertVenue(String guid, String name, String address, String offlineMap, String offlineMapBounds, String infoText) {
+	// Refreshes what the conference list says about a conference, leaving
+	// its cached state and revision alone
+	public void updateConferenceInfo(long conferenceId, Conference conference) {
 		ContentValues values = new ContentValues();
-		values.put("guid", guid);
-		values.put("name", name);
-		values.put("address", address);
-		values.put("offline_map", offlineMap);
-		values.put("offline_map_bounds", offlineMapBounds);
-		values.put("info_text", infoText);
-		long insertId = db.insert("venues", null, values);
-		return insertId;
+		values.put("name", conference.getName());
+		values.put("year", conference.getYear());
+		values.put("dateRange", conference.getDateRange());
+		values.put("description", conference.getDescription());
+		values.put("social_tag", conference.getSocialTag());
+		values.put("url", conference.getUrl());
+		update("conferences", values, "_id = ?", new String[] { String.valueOf(conferenceId) });
+	}
+	
+	// Bulk inserts are used when caching a conference.  Wrap the whole
+	// load in beginBulkInsert()/endBulkInsert() so SQLite only journals
+	// once, instead of once per row.
+	public void beginBulkInsert() {
+		db.beginTransaction();
+	}
+	
+	public void endBulkInsert(boolean successful) {
+		if (successful)
+			db.setTransactionSuccessful();
+		db.endTransaction();
+		invalidateSnapshot();
+	}
+	
+	public long insertVenue(String guid, String name, String address, String offlineMap, String offlineMapBounds, String infoText) {
+		SQLiteStatement statement = getStatement(INSERT_VENUE, "INSERT INTO venues (guid, name, address, "
+				+ "offline_map, offline_map_bounds, info_text) VALUES (?, ?, ?, ?, ?, ?)");
+		synchronized (statement) {
+			bindString(statement, 1, guid);
+			bindString(statement, 2, name);
+			bindString(statement, 3, address);
+			bindString(statement, 4, offlineMap);
+			bindString(statement, 5, offlineMapBounds);
+			bindString(statement, 6, infoText);
+			return executeInsert(INSERT_VENUE, statement);
+		}
 	}
 	
 	public void insertVenuePoint(long venueId,
-								 String lat,
-								 String lon,
+								 int latE6,
+								 int lonE6,
 								 String type,
 								 String name,
 								 String address,
 								 String description) {
+		SQLiteStatement statement = getStatement(INSERT_POINT, "INSERT INTO points (venue_id, type, lat_e6, lon_e6, "
+				+ "name, address, description) VALUES (?, ?, ?, ?, ?, ?, ?)");
+		synchronized (statement) {
+			statement.bindLong(1, venueId);
+			bindString(statement, 2, type);
+			statement.bindLong(3, latE6);
+			statement.bindLong(4, lonE6);
+			bindString(statement, 5, name);
+			bindString(statement, 6, address);
+			bindString(statement, 7, description);
+			executeInsert(INSERT_POINT, statement);
+		}
+	}
+	
+	// coordinates are E6 latitude/longitude pairs, see packRing()
+	public void insertVenuePolygon(long venueId, String name, String label, int lineColor, int fillColor, int[] coordinates) {
+		SQLiteStatement statement = getStatement(INSERT_POLYGON, "INSERT INTO mapPolygons (venue_id, name, label, "
+				+ "lineColor, fillColor, ring) VALUES (?, ?, ?, ?, ?, ?)");
+		synchronized (statement) {
+			statement.bindLong(1, venueId);
+			bindString(statement, 2, name);
+			bindString(statement, 3, label);
+			statement.bindLong(4, lineColor);
+			statement.bindLong(5, fillColor);
+			statement.bindBlob(6, packRing(coordinates));
+			executeInsert(INSERT_POLYGON, statement);
+		}
+	}
+	
+	public long insertRoom(String guid, String name, String description, long venueId) {
+		SQLiteStatement statement = getStatement(INSERT_ROOM, "INSERT INTO rooms (guid, name, description, venue_id) "
+				+ "VALUES (?, ?, ?, ?)");
+		synchronized (statement) {
+			bindString(statement, 1, guid);
+			bindString(statement, 2, name);
+			bindString(statement, 3, description);
+			statement.bindLong(4, venueId);
+			return executeInsert(INSERT_ROOM, statement);
+		}
+	}
+	
+	public long insertTrack(String guid, String name, String color, long conferenceId) {
+		SQLiteStatement statement = getStatement(INSERT_TRACK, "INSERT INTO tracks (guid, name, color, conference_id) "
+				+ "VALUES (?, ?, ?, ?)");
+		synchronized (statement) {
+			bindString(statement, 1, guid);
+			bindString(statement, 2, name);
+			bindString(statement, 3, color);
+			statement.bindLong(4, conferenceId);
+			return executeInsert(INSERT_TRACK, statement);
+		}
+	}
+
+	public long insertSpeaker(String guid, String name, String company, String biography, String photoGuid, long conferenceId) {
+		SQLiteStatement statement = getStatement(INSERT_SPEAKER, "INSERT INTO speakers (guid, name, company, "
+				+ "biography, photo_guid, conference_id) VALUES (?, ?, ?, ?, ?, ?)");
+		synchronized (statement) {
+			bindString(statement, 1, guid);
+			bindString(statement, 2, name);
+			bindString(statement, 3, company);
+			bindString(statement, 4, biography);
+			bindString(statement, 5, photoGuid);
+			statement.bindLong(6, conferenceId);
+			return executeInsert(INSERT_SPEAKER, statement);
+		}
+	}
+
+	// Returns -1, and stores nothing, if the event's date can't be read
+	public long insertEvent(String guid,
+							long conferenceId,
+							long roomId,
+							long trackId,
+							String date,
+							int length,
+							String type,
+							String language,
+							String title,
+							String abs,
+							String urlList) {
+		SQLiteStatement statement = getStatement(INSERT_EVENT, "INSERT INTO events (guid, conference_id, room_id, "
+				+ "track_id, my_schedule, date, length, type, title, language, abstract, url_list, "
+				+ "start_ms, end_ms, tz_offset_minutes) VALUES (?, ?, ?, ?, 0, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+		long startMs = parseEventDate(date);
+		if (startMs == NO_DATE) {
+			Log.w("SUSEConferences", "Skipping event " + guid + ", unreadable date: " + date);
+			return -1;
+		}
+		synchronized (statement) {
+			bindString(statement, 1, guid);
+			statement.bindLong(2, conferenceId);
+			statement.bindLong(3, roomId);
+			statement.bindLong(4, trackId);
+			bindString(statement, 5, date);
+			statement.bindLong(6, length);
+			bindString(statement, 7, type);
+			bindString(statement, 8, title);
+			bindString(statement, 9, language);
+			bindString(statement, 10, abs);
+			bindString(statement, 11, urlList);
+			statement.bindLong(12, startMs);
+			statement.bindLong(13, startMs + length * 60000L);
+			statement.bindLong(14, parseTimeZoneOffset(date));
+			return executeInsert(INSERT_EVENT, statement);
+		}
+	}
+	
+	public void insertEventSpeaker(long speakerId, long eventId) {
+		SQLiteStatement statement = getStatement(INSERT_EVENT_SPEAKER, "INSERT INTO eventSpeakers (speaker_id, event_id) "
+				+ "VALUES (?, ?)");
+		synchronized (statement) {
+			statement.bindLong(1, speakerId);
+			statement.bindLong(2, eventId);
+			executeInsert(INSERT_EVENT_SPEAKER, statement);
+		}
+	}
+	
+	// Used by ScheduleDiff to compare what's stored with a new download.
+	// Maps each guid to its _id followed by the given columns, as strings.
+	public HashMap<String, String[]> getRowsByGuid(String table, String[] columns, String where, String[] args) {
+		StringBuilder sql = new StringBuilder("SELECT guid, _id");
+		for (String column : columns) {
+			sql.append(", ").append(column);
+		}
+		sql.append(" FROM ").append(table).append(" WHERE ").append(where);
+
+		HashMap<String, String[]> ret = new HashMap<String, String[]>();
+		Cursor c = rawQuery(sql.toString(), args);
+		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+			String[] row = new String[columns.length + 1];
+			for (int i = 0; i < row.length; i++) {
+				row[i] = c.getString(i + 1);
+			}
+			ret.put(c.getString(0), row);
+		}
+		c.close();
+		return ret;
+	}
+	
+	// The speakers of each event of a conference, as a key that is the
+	// same whenever the set of speakers is: their _ids, sorted and joined
+	public HashMap<Long, String> getEventSpeakerKeys(long conferenceId) {
+		HashMap<Long, String> ret = new HashMap<Long, String>();
+		String sql = "SELECT eventSpeakers.event_id, eventSpeakers.speaker_id FROM eventSpeakers "
+				+ "INNER JOIN events ON events._id = eventSpeakers.event_id "
+				+ "WHERE events.conference_id = ? "
+				+ "ORDER BY eventSpeakers.event_id, eventSpeakers.speaker_id";
+		Cursor c = rawQuery(sql, new String[] { String.valueOf(conferenceId) });
+		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+			Long eventId = c.getLong(0);
+			String key = ret.get(eventId);
+			ret.put(eventId, key == null ? c.getString(1) : key + "," + c.getString(1));
+		}
+		c.close();
+		return ret;
+	}
+	
+	public void updateVenue(long venueId, String name, String address, String offlineMap, String offlineMapBounds, String infoText) {
 		ContentValues values = new ContentValues();
-		values.put("venue_id", venueId);
-		values.put("type", type);
-		values.put("lat", lat);
-		values.put("lon", lon);
 		values.put("name", name);
 		values.put("address", address);
-		values.put("description", description);
-		db.insert("points", null, values);
+		values.put("offline_map", offlineMap);
+		values.put("offline_map_bounds", offlineMapBounds);
+		values.put("info_text", infoText);
+		update("venues", values, "_id = ?", new String[] { String.valueOf(venueId) });
 	}
 	
-	public void insertVenuePolygon(long venueId, String name, String label, int lineColor, int fillColor, String pointList) {
-		ContentValues values = new ContentValues();
-		values.put("venue_id", venueId);
-		values.put("name", name);
-		values.put("label", label);
-		values.put("lineColor", lineColor);
-		values.put("fillColor", fillColor);
-		values.put("pointList", pointList);
-		db.insert("mapPolygons", null, values);
+	// Removes a venue's points and polygons, so they can be inserted again
+	public void clearVenueMap(long venueId) {
+		Object[] args = new Object[] { Long.valueOf(venueId) };
+		execSQL("DELETE FROM points WHERE venue_id = ?", args);
+		execSQL("DELETE FROM mapPolygons WHERE venue_id = ?", args);
 	}
-	public long insertRoom(String guid, String name, String description, long venueId) {
+	
+	public void deleteVenue(long venueId) {
+		clearVenueMap(venueId);
+		execSQL("DELETE FROM venues WHERE _id = ?", new Object[] { Long.valueOf(venueId) });
+	}
+	
+	public void updateRoom(long roomId, String name, String description, long venueId) {
 		ContentValues values = new ContentValues();
-		values.put("guid", guid);
 		values.put("name", name);
 		values.put("description", description);
 		values.put("venue_id", venueId);
-		long insertId = db.insert("rooms", null, values);
-		return insertId;
+		update("rooms", values, "_id = ?", new String[] { String.valueOf(roomId) });
 	}
 	
-	public long insertTrack(String guid, String name, String color, long conferenceId) {
+	public void updateTrack(long trackId, String name, String color) {
 		ContentValues values = new ContentValues();
-		values.put("guid", guid);
 		values.put("name", name);
 		values.put("color", color);
-		values.put("conference_id", conferenceId);
-		long insertId = db.insert("tracks", null, values);
-		return insertId;
+		update("tracks", values, "_id = ?", new String[] { String.valueOf(trackId) });
 	}
-
-	public long insertSpeaker(String guid, String name, String company, String biography, String photoGuid) {
+	
+	public void updateSpeaker(long speakerId, String name, String company, String biography) {
 		ContentValues values = new ContentValues();
-		values.put("guid", guid);
 		values.put("name", name);
 		values.put("company", company);
 		values.put("biography", biography);
-		values.put("photo_guid", photoGuid);
-		long insertId = db.insert("speakers", null, values);
-		return insertId;
+		update("speakers", values, "_id = ?", new String[] { String.valueOf(speakerId) });
 	}
-
-	public long insertEvent(String guid,
-							long conferenceId,
+	
+	// Everything insertEvent() sets apart from the guid and conference,
+	// which don't change.  The _id is kept, so nothing pointing at the
+	// event needs to change either.  Returns false, and leaves the event
+	// as it was, if the new date can't be read.
+	public boolean updateEvent(long eventId,
 							long roomId,
 							long trackId,
 							String date,
@@ -360,183 +796,489 @@ public class Database {
 							String type,
 							String language,
 							String title,
-							String abs,
-							String urlList) {
+							String abs) {
+		long startMs = parseEventDate(date);
+		if (startMs == NO_DATE) {
+			Log.w("SUSEConferences", "Not updating event " + eventId + ", unreadable date: " + date);
+			return false;
+		}
 		ContentValues values = new ContentValues();
-		values.put("guid", guid);
-		values.put("conference_id", conferenceId);
 		values.put("room_id", roomId);
 		values.put("track_id", trackId);
-		values.put("my_schedule", 0);
 		values.put("date", date);
 		values.put("length", length);
 		values.put("type", type);
-		values.put("title", title);
 		values.put("language", language);
+		values.put("title", title);
 		values.put("abstract", abs);
-		values.put("url_list", urlList);
-		long insertId = db.insert("events", null, values);
-		return insertId;
+		values.put("start_ms", startMs);
+		values.put("end_ms", startMs + length * 60000L);
+		values.put("tz_offset_minutes", parseTimeZoneOffset(date));
+		update("events", values, "_id = ?", new String[] { String.valueOf(eventId) });
+		return true;
 	}
 	
-	public void insertEventSpeaker(long speakerId, long eventId) {
-		ContentValues values = new ContentValues();
-		values.put("speaker_id", speakerId);
-		values.put("event_id", eventId);
-		db.insert("eventSpeakers", null, values);
+	public void setEventSpeakers(long eventId, List<Long> speakerIds) {
+		execSQL("DELETE FROM eventSpeakers WHERE event_id = ?", new Object[] { Long.valueOf(eventId) });
+		for (Long speakerId : speakerIds) {
+			insertEventSpeaker(speakerId, eventId);
+		}
 	}
-		
-	public List<Event> getNextTwoEvents(long conferenceId) {
-		List<Event> eventList = getScheduleTitles(conferenceId);
-		Collections.sort(eventList);
-		if (eventList.size() >= 2)
-			return eventList.subList(0,2);
+	
+	// Removes events along with their speaker links and search rows
+	public void deleteEvents(List<Long> eventIds) {
+		for (Long eventId : eventIds) {
+			Object[] args = new Object[] { eventId };
+			execSQL("DELETE FROM eventSpeakers WHERE event_id = ?", args);
+			execSQL("DELETE FROM eventsSearch WHERE docid = ?", args);
+			execSQL("DELETE FROM events WHERE _id = ?", args);
+		}
+	}
+	
+	public void deleteSpeakers(List<Long> speakerIds) {
+		for (Long speakerId : speakerIds) {
+			Object[] args = new Object[] { speakerId };
+			execSQL("DELETE FROM eventSpeakers WHERE speaker_id = ?", args);
+			execSQL("DELETE FROM speakers WHERE _id = ?", args);
+		}
+	}
+	
+	public void deleteRooms(List<Long> roomIds) {
+		for (Long roomId : roomIds) {
+			execSQL("DELETE FROM rooms WHERE _id = ?", new Object[] { roomId });
+		}
+	}
+	
+	public void deleteTracks(List<Long> trackIds) {
+		for (Long trackId : trackIds) {
+			execSQL("DELETE FROM tracks WHERE _id = ?", new Object[] { trackId });
+		}
+	}
+	
+	// The insert statements are compiled the first time they're used,
+	// and kept around until the database is closed
+	private synchronized SQLiteStatement getStatement(int which, String sql) {
+		if (mStatements[which] == null) {
+			mStatements[which] = db.compileStatement(sql);
+			mStatementSql[which] = sql;
+		}
+		return mStatements[which];
+	}
+	
+	// Every statement is run through the methods below, so that QueryStats
+	// sees it.  When stats are on, rawQuery() counts the rows straight away,
+	// which is when the query actually runs.
+	private Cursor rawQuery(String sql, String[] args) {
+		long start = QueryStats.startQuery();
+		Cursor c = db.rawQuery(sql, args);
+		if (start != 0)
+			QueryStats.endQuery(sql, start, c.getCount());
+		return c;
+	}
+	
+	private void execSQL(String sql) {
+		long start = QueryStats.startQuery();
+		db.execSQL(sql);
+		QueryStats.endQuery(sql, start, 0);
+	}
+	
+	private void execSQL(String sql, Object[] args) {
+		long start = QueryStats.startQuery();
+		db.execSQL(sql, args);
+		QueryStats.endQuery(sql, start, 0);
+	}
+	
+	private int update(String table, ContentValues values, String where, String[] args) {
+		long start = QueryStats.startQuery();
+		int rows = db.update(table, values, where, args);
+		if (start != 0)
+			QueryStats.endQuery("UPDATE " + table + " WHERE " + where, start, rows);
+		return rows;
+	}
+	
+	private long insert(String table, ContentValues values) {
+		long start = QueryStats.startQuery();
+		long id = db.insert(table, null, values);
+		if (start != 0)
+			QueryStats.endQuery("INSERT INTO " + table, start, 1);
+		return id;
+	}
+	
+	// Called with the statement's lock held
+	private long executeInsert(int which, SQLiteStatement statement) {
+		long start = QueryStats.startQuery();
+		long id = statement.executeInsert();
+		QueryStats.endQuery(mStatementSql[which], start, 1);
+		return id;
+	}
+	
+	private synchronized void closeStatements() {
+		for (int i = 0; i < mStatements.length; i++) {
+			if (mStatements[i] != null) {
+				mStatements[i].close();
+				mStatements[i] = null;
+			}
+		}
+	}
+	
+	private static void bindString(SQLiteStatement statement, int index, String value) {
+		if (value == null)
+			statement.bindNull(index);
 		else
-			return eventList;
+			statement.bindString(index, value);
+	}
+		
+	// "Now and next" lookups.  Each one is a handful of index seeks on
+	// events (room_id, start_ms) or (conference_id, start_ms), so they're
+	// cheap enough to run every minute.
+	
+	// For each room of the conference's venue, the _id of the last event
+	// to start at or before the given time, or of the first event to start
+	// after it.  Takes the conference id, the time and the conference id again.
+	private static final String LAST_STARTED_PER_ROOM = "SELECT (SELECT e2._id FROM events e2 "
+			+ "WHERE e2.room_id = rooms._id AND e2.conference_id = ? AND e2.start_ms <= ? "
+			+ "ORDER BY e2.start_ms DESC LIMIT 1) "
+			+ "FROM rooms WHERE rooms.venue_id = (SELECT venue_id FROM conferences WHERE _id = ?)";
+	private static final String NEXT_STARTING_PER_ROOM = "SELECT (SELECT e2._id FROM events e2 "
+			+ "WHERE e2.room_id = rooms._id AND e2.conference_id = ? AND e2.start_ms > ? "
+			+ "ORDER BY e2.start_ms ASC LIMIT 1) "
+			+ "FROM rooms WHERE rooms.venue_id = (SELECT venue_id FROM conferences WHERE _id = ?)";
+	
+	// What is on in each room at the given time, sorted by room name
+	public List<Event> getEventsRunningAt(long conferenceId, long time) {
+		String conference = String.valueOf(conferenceId);
+		String now = String.valueOf(time);
+		String where = "WHERE events._id IN (" + LAST_STARTED_PER_ROOM + ") AND events.end_ms > ?";
+		return doEventsQuery(where, "ORDER BY rooms.name ASC",
+				new String[] { conference, now, conference, now }, conferenceId);
+	}
+	
+	// The next event to start in each room after the given time, sorted
+	// by room name
+	public List<Event> getNextEventPerRoom(long conferenceId, long time) {
+		String conference = String.valueOf(conferenceId);
+		String where = "WHERE events._id IN (" + NEXT_STARTING_PER_ROOM + ")";
+		return doEventsQuery(where, "ORDER BY rooms.name ASC",
+				new String[] { conference, String.valueOf(time), conference }, conferenceId);
+	}
+	
+	// The first count events to start after the given time, in any room
+	public List<Event> getUpcomingEvents(long conferenceId, long time, int count) {
+		String where = "WHERE events.conference_id = ? AND events.start_ms > ?";
+		return doEventsQuery(where, "ORDER BY events.start_ms ASC, events._id ASC", "LIMIT ?",
+				new String[] { String.valueOf(conferenceId), String.valueOf(time), String.valueOf(count) },
+				conferenceId);
+	}
+	
+	// Rebuild the full text search rows for a conference's events.  Run
+	// this once after all of the events and speakers have been inserted.
+	public void updateSearchIndex(long conferenceId) {
+		Object[] args = new Object[] { Long.valueOf(conferenceId) };
+		execSQL("DELETE FROM eventsSearch WHERE docid IN "
+				+ "(SELECT _id FROM events WHERE conference_id = ?)", args);
+		execSQL(DatabaseHelper.eventSearchPopulate + " WHERE events.conference_id = ?", args);
 	}
 	
 	// Search the database and return an array list of the _ids,
-	// suitable for joining into an IN () query
-	// TODO Search for people's names as well
+	// suitable for joining into an IN () query.  Every word in the
+	// query is matched as a prefix, and the results are ordered by
+	// relevance: hits in the title count for more than hits in the
+	// speakers, track or abstract.
 	public ArrayList<String> searchEvents(long conferenceId, String what) {
 		ArrayList<String> ret = new ArrayList<String>();
-		String sql = "SELECT _id FROM events where (title like \"%" + what + "%\") "
-				     +"OR (abstract like \"%" + what + "%\") AND conference_id=" + conferenceId;
-		Cursor c = db.rawQuery(sql, null);
+		String match = buildMatchQuery(what);
+		if (match.length() == 0)
+			return ret;
+	
+		String sql = "SELECT eventsSearch.docid, offsets(eventsSearch), events.start_ms "
+				+ "FROM eventsSearch INNER JOIN events ON events._id = eventsSearch.docid "
+				+ "WHERE eventsSearch MATCH ? AND events.conference_id = ?";
+		Cursor c = rawQuery(sql, new String[] { match, String.valueOf(conferenceId) });
+		List<SearchHit> hits = new ArrayList<SearchHit>(c.getCount());
 		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
-			ret.add(String.valueOf(c.getInt(0)));
+			hits.add(new SearchHit(c.getLong(0), scoreOffsets(c.getString(1)), c.getLong(2)));
 		}
 		c.close();
+	
+		Collections.sort(hits);
+		for (SearchHit hit : hits) {
+			ret.add(String.valueOf(hit.eventId));
+		}
 		return ret;
 	}
 	
-	public String[] getUniqueLanguages(long conferenceId) {
-		String sql = "SELECT DISTINCT(language) FROM events WHERE conference_id = " + conferenceId;
-		Cursor c = db.rawQuery(sql, null);
-		int count = c.getCount();
-		if (count > 0) {
-			String[] ret = new String[count];
-			count = 0;
-			for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
-				ret[count] = c.getString(0);
-				count++;
+	// Turn what the user typed into an FTS query: one prefix term per
+	// word, so "kern sched" finds "Kernel scheduling".  Anything that
+	// isn't a letter or digit is dropped so it can't be read as FTS syntax.
+	static String buildMatchQuery(String what) {
+		StringBuilder match = new StringBuilder();
+		StringBuilder word = new StringBuilder();
+		int len = what == null ? 0 : what.length();
+		for (int i = 0; i <= len; i++) {
+			char ch = i < len ? what.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(ch)) {
+				word.append(ch);
+			} else if (word.length() > 0) {
+				if (match.length() > 0)
+					match.append(' ');
+				match.append(word).append('*');
+				word.setLength(0);
 			}
-			return ret;
-		} else {
-			return null;
 		}
+		return match.toString();
 	}
 	
-	public List<Track> getUniqueTracks(long conferenceId) {
-		List<Track> trackList = new ArrayList<Track>();
-		String sql = "SELECT DISTINCT(events.track_id), tracks.name FROM events INNER JOIN tracks ON tracks._id = events.track_id WHERE events.conference_id=" + conferenceId;
-		Cursor c = db.rawQuery(sql, null);
-		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
-			Track track = new Track(c.getLong(0), c.getString(1));
-			trackList.add(track);
+	// Weights for the eventsSearch columns, in table order: title,
+	// abstract, speakers, companies, track
+	private static final int[] SEARCH_WEIGHTS = { 10, 1, 5, 2, 3 };
+	
+	// offsets() returns four integers per hit: the column, the query
+	// term, and the byte offset and size of the match
+	private static int scoreOffsets(String offsets) {
+		int score = 0;
+		if (offsets == null)
+			return score;
+		String[] parts = offsets.split(" ");
+		for (int i = 0; i + 3 < parts.length; i += 4) {
+			int column = Integer.parseInt(parts[i]);
+			if (column >= 0 && column < SEARCH_WEIGHTS.length)
+				score += SEARCH_WEIGHTS[column];
 		}
-		return trackList;
+		return score;
 	}
 	
-	public List<Event> getMyScheduleTitles(long conferenceId) {
-		String sql = "SELECT events._id, events.guid, events.title, events.date, events.length, "
-				   + "rooms.name, events.track_id, events.abstract, events.my_schedule FROM events INNER JOIN rooms ON rooms._id = events.room_id "
-				   + "WHERE events.my_schedule=1 AND events.conference_id = " + conferenceId + " ORDER BY julianday(events.date) ASC";
-		return doEventsQuery(sql, conferenceId);
+	private static class SearchHit implements Comparable<SearchHit> {
+		final long eventId;
+		final int score;
+		final long startMs;
+		
+		SearchHit(long eventId, int score, long startMs) {
+			this.eventId = eventId;
+			this.score = score;
+			this.startMs = startMs;
+		}
+		
+		@Override
+		public int compareTo(SearchHit another) {
+			if (score != another.score)
+				return score > another.score ? -1 : 1;
+			if (startMs != another.startMs)
+				return startMs < another.startMs ? -1 : 1;
+			return 0;
+		}
 	}
 	
-	public List<String> getFavoriteGuids(long conferenceId) {
-		List<String> ret = new ArrayList<String>();
-		String sql = "SELECT guid FROM events WHERE my_schedule=1";
-		Cursor c = db.rawQuery(sql, null);
-
+	// Rebuild the language and track counts for a conference.  Like the
+	// search index, run it once everything has been inserted.
+	public void updateFacets(long conferenceId) {
+		Object[] args = new Object[] { Long.valueOf(conferenceId) };
+		execSQL("DELETE FROM facets WHERE conference_id = ?", args);
+		execSQL(DatabaseHelper.languageFacetsPopulate + " WHERE events.conference_id = ?"
+				+ DatabaseHelper.languageFacetsGroup, args);
+		execSQL(DatabaseHelper.trackFacetsPopulate + " WHERE events.conference_id = ?"
+				+ DatabaseHelper.trackFacetsGroup, args);
+	}
+	
+	// The languages and tracks of a conference with their event counts,
+	// languages first, each sorted by name
+	public List<Facet> getFacets(long conferenceId) {
+		List<Facet> facets = new ArrayList<Facet>();
+		String sql = "SELECT kind, value, label, event_count FROM facets "
+				+ "WHERE conference_id = ? ORDER BY kind, label";
+		Cursor c = rawQuery(sql, new String[] { String.valueOf(conferenceId) });
 		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
-			ret.add("\"" + c.getString(0) + "\"");
+			facets.add(new Facet(c.getInt(0), c.getString(1), c.getString(2), c.getInt(3)));
 		}
-		return ret;
+		c.close();
+		return facets;
+	}
+	
+	public List<Event> getMyScheduleTitles(long conferenceId) {
+		String where = "WHERE events.conference_id = ? AND events.guid IN "
+				+ "(SELECT userState.event_guid FROM userState "
+				+ "INNER JOIN conferences ON conferences.guid = userState.conference_guid "
+				+ "WHERE conferences._id = ? AND userState.favorite = 1)";
+		String conference = String.valueOf(conferenceId);
+		return doEventsQuery(where, "ORDER BY events.start_ms ASC",
+				new String[] { conference, conference }, conferenceId);
 	}
 	
-	public List<Event> getAlertEvents(long conferenceId) { 
+	public List<Event> getAlertEvents(long conferenceId) {
 		List<Event> ret = new ArrayList<Event>();
-		SimpleDateFormat  format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-
-		String sql = "SELECT events._id, events.guid, events.title, events.date, events.length,  "
-				    + "rooms.name FROM events INNER JOIN rooms on rooms._id= events.room_id WHERE events.alert=1";
-		Cursor c = db.rawQuery(sql, null);
+		String sql = "SELECT events._id, events.guid, events.title, events.start_ms, events.end_ms, "
+				    + "events.tz_offset_minutes, events.length, rooms.name FROM events "
+				    + "INNER JOIN rooms on rooms._id= events.room_id "
+				    + "INNER JOIN conferences ON conferences._id = events.conference_id "
+				    + "INNER JOIN userState ON userState.conference_guid = conferences.guid "
+				    + "AND userState.event_guid = events.guid "
+				    + "WHERE userState.alert = 1 AND events.conference_id = ?";
+		Cursor c = rawQuery(sql, new String[] { String.valueOf(conferenceId) });
 
 		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
 			Event e = new Event();
 			e.setSqlId(c.getLong(0));
 			e.setGuid(c.getString(1));
 			e.setTitle(c.getString(2));
-			String time = c.getString(3);
-		    Date date;
-			try {
-				date = format.parse(time);
-			} catch (ParseException e1) {
-				e1.printStackTrace();
-				date = new Date();
-			}
-		    String tzOffset = time.substring(time.length() - 5);
-		    TimeZone tz = TimeZone.getTimeZone("GMT"+tzOffset);
-		    e.setTimeZone(tz);
-		    e.setDate(date);
-		    GregorianCalendar cal = new GregorianCalendar();
-		    cal.setTime(date);
-		    cal.setTimeZone(tz);
-		    cal.add(GregorianCalendar.MINUTE, c.getInt(4));
-		    e.setLength(c.getInt(4));
-		    e.setEndDate(cal.getTime());
-		    e.setRoomName(c.getString(5));
+		    e.setDate(new Date(c.getLong(3)));
+		    e.setEndDate(new Date(c.getLong(4)));
+		    e.setTimeZone(getTimeZone(c.getInt(5)));
+		    e.setLength(c.getInt(6));
+		    e.setRoomName(c.getString(7));
 			ret.add(e);
 		}
+		c.close();
 		return ret;
 	}
 	
-	public List<Event> getEventsFromIdList(long conferenceId, ArrayList<String> ids) {
-		String in = TextUtils.join(",", ids);
-		List<Event> ret = new ArrayList<Event>();
-		String sql = "SELECT events._id, events.guid, events.title, events.date, events.length, "
-				   + "rooms.name, events.track_id, events.abstract, events.my_schedule FROM events INNER JOIN rooms ON rooms._id = events.room_id "
-				   + "WHERE events._id IN (" + in + ")";
-		return doEventsQuery(sql, conferenceId);
-	}
-
 	public List<Event> getScheduleTitles(long conferenceId) {
 		return getScheduleTitles(conferenceId, null, null);
 	}
 	
 	public List<Event> getScheduleTitles(long conferenceId, String trackFilter, String languageFilter) {
-		String where = "WHERE events.conference_id = " + conferenceId;
-		if (trackFilter != null && trackFilter.length() > 0) {
-			where += " AND events.track_id IN (" + trackFilter + ")";
+		return doEventsQuery(buildScheduleWhere(trackFilter, languageFilter),
+				"ORDER BY events.start_ms ASC",
+				scheduleArgs(conferenceId, trackFilter, languageFilter),
+				conferenceId);
+	}
+	
+	// The schedule methods below let the full schedule list load its rows a page
+	// at a time.  They all order events by start time, then _id, so pages line up
+	// with the day counts from getScheduleDays().
+	public List<Event> getSchedulePage(long conferenceId, String trackFilter, String languageFilter, int offset, int count) {
+		return doEventsQuery(buildScheduleWhere(trackFilter, languageFilter),
+				"ORDER BY events.start_ms ASC, events._id ASC",
+				"LIMIT ? OFFSET ?",
+				scheduleArgs(conferenceId, trackFilter, languageFilter, String.valueOf(count), String.valueOf(offset)),
+				conferenceId);
+	}
+	
+	// Count the events on each day of the schedule, where a day is the
+	// calendar day in the event's own time zone
+	public List<ScheduleDay> getScheduleDays(long conferenceId, String trackFilter, String languageFilter) {
+		List<ScheduleDay> days = new ArrayList<ScheduleDay>();
+		String sql = "SELECT (events.start_ms + events.tz_offset_minutes * 60000) / 86400000 AS day, "
+				+ "COUNT(*), MIN(events.start_ms), MIN(events.tz_offset_minutes) FROM events "
+				+ buildScheduleWhere(trackFilter, languageFilter)
+				+ " GROUP BY day ORDER BY day";
+		Cursor c = rawQuery(sql, scheduleArgs(conferenceId, trackFilter, languageFilter));
+		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+			days.add(new ScheduleDay(new Date(c.getLong(2)), getTimeZone(c.getInt(3)), c.getInt(1)));
+		}
+		c.close();
+		return days;
+	}
+	
+	// Returns how many events come before the first one that hasn't
+	// finished yet, or -1 if they have all finished
+	public int getScheduleIndexForTime(long conferenceId, String trackFilter, String languageFilter, long time) {
+		String where = buildScheduleWhere(trackFilter, languageFilter);
+		String sql = "SELECT events.start_ms, events._id FROM events " + where
+				+ " AND events.end_ms >= ? ORDER BY events.start_ms ASC, events._id ASC LIMIT 1";
+		Cursor c = rawQuery(sql, scheduleArgs(conferenceId, trackFilter, languageFilter, String.valueOf(time)));
+		if (!c.moveToFirst()) {
+			c.close();
+			return -1;
 		}
-		if (languageFilter != null && languageFilter.length() > 0) {
-			where += " AND events.language IN (" + languageFilter + ")";
+		String start = c.getString(0);
+		String id = c.getString(1);
+		c.close();
+	
+		sql = "SELECT COUNT(*) FROM events " + where
+				+ " AND (events.start_ms < ? OR (events.start_ms = ? AND events._id < ?))";
+		c = rawQuery(sql, scheduleArgs(conferenceId, trackFilter, languageFilter, start, start, id));
+		int index = c.moveToFirst() ? c.getInt(0) : -1;
+		c.close();
+		return index;
+	}
+	
+	// The where clause for the schedule.  The track and language filters are
+	// stored as comma separated lists, and each value gets its own "?", so
+	// the statement only varies with how many values there are, and the
+	// schedule queries stay read only.  See scheduleArgs() for the arguments.
+	private String buildScheduleWhere(String trackFilter, String languageFilter) {
+		String where = "WHERE events.conference_id = ?";
+		int tracks = splitFilter(trackFilter).length;
+		if (tracks > 0) {
+			where += " AND events.track_id IN (" + placeholders(tracks) + ")";
 		}
-		String sql = "SELECT events._id, events.guid, events.title, events.date, events.length, "
-				   + "rooms.name, events.track_id, events.abstract, events.my_schedule FROM events INNER JOIN rooms ON rooms._id = events.room_id "
-				   + where + " ORDER BY julianday(events.date) ASC";
-		return doEventsQuery(sql, conferenceId);
+		int languages = splitFilter(languageFilter).length;
+		if (languages > 0) {
+			where += " AND events.language IN (" + placeholders(languages) + ")";
+		}
+		return where;
+	}
+	
+	// Arguments for buildScheduleWhere(): the conference id, the filter
+	// values, then any extra arguments for the rest of the query
+	private String[] scheduleArgs(long conferenceId, String trackFilter, String languageFilter, String... extra) {
+		String[] tracks = splitFilter(trackFilter);
+		String[] languages = splitFilter(languageFilter);
+		String[] args = new String[1 + tracks.length + languages.length + extra.length];
+		int i = 0;
+		args[i++] = String.valueOf(conferenceId);
+		for (String track : tracks)
+			args[i++] = track;
+		for (String language : languages)
+			args[i++] = language;
+		for (String arg : extra)
+			args[i++] = arg;
+		return args;
+	}
+	
+	private static String[] splitFilter(String filter) {
+		if (filter == null || filter.length() == 0)
+			return new String[0];
+		String[] values = TextUtils.split(filter, ",");
+		for (int i = 0; i < values.length; i++) {
+			values[i] = values[i].replace("\"", "").trim();
+		}
+		return values;
+	}
+	
+	private static String placeholders(int count) {
+		StringBuilder sb = new StringBuilder(count * 2);
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append('?');
+		}
+		return sb.toString();
 	}
 	
 	public Event getEvent(long conferenceId, long eventId) {
-		String sql = "SELECT events._id, events.guid, events.title, events.date, events.length, "
-				   + "rooms.name, events.track_id, events.abstract, events.my_schedule FROM events INNER JOIN rooms ON rooms._id = events.room_id "
-				   + "WHERE events._id = " + eventId;
-		List<Event> events = doEventsQuery(sql, conferenceId);
+		String where = "WHERE events._id = ?";
+		List<Event> events = doEventsQuery(where, "", new String[] { String.valueOf(eventId) }, conferenceId);
 		if (events.size() == 0)
 			return null;
-		
+	
 		Event e = events.get(0);
 		return e;
 	}
 	
-	private List<Event> doEventsQuery(String sql, long conferenceId) {
-		SimpleDateFormat  format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-
-		List<Event> eventList = new ArrayList<Event>();		
-		Cursor c = db.rawQuery(sql, null);
+	// Loads the events matching the where clause with two queries: one for the
+	// events joined with their room and track, and one for the speakers of
+	// all of those events.  The where clause can only reference the events table,
+	// since it's reused in the speaker subquery.  The same arguments are bound
+	// to both queries.
+	private List<Event> doEventsQuery(String where, String orderBy, String[] args, long conferenceId) {
+		return doEventsQuery(where, orderBy, "", args, conferenceId);
+	}
+	
+	// As above, but only loading a LIMIT/OFFSET window of the ordered events.
+	// Any arguments for the limit come after the ones for the where clause.
+	private List<Event> doEventsQuery(String where, String orderBy, String limit, String[] args, long conferenceId) {
+		List<Event> eventList = new ArrayList<Event>();
+		HashMap<Long, Event> eventMap = new HashMap<Long, Event>();
+		String sql = "SELECT events._id, events.guid, events.title, events.start_ms, events.end_ms, "
+				   + "events.tz_offset_minutes, events.length, rooms.name, tracks.color, tracks.name, "
+				   + "events.abstract, IFNULL(userState.favorite, 0) FROM events "
+				   + "INNER JOIN rooms ON rooms._id = events.room_id "
+				   + "LEFT JOIN tracks ON tracks._id = events.track_id "
+				   + "LEFT JOIN conferences ON conferences._id = events.conference_id "
+				   + "LEFT JOIN userState ON userState.conference_guid = conferences.guid "
+				   + "AND userState.event_guid = events.guid "
+				   + where + " " + orderBy + " " + limit;
+		Cursor c = rawQuery(sql, args);
 
 		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
 			Event newEvent = new Event();
@@ -545,55 +1287,88 @@ public class Database {
 			newEvent.setSqlId(sqlId);
 			newEvent.setGuid(c.getString(1));
 			newEvent.setTitle(c.getString(2));
-			try {
-				String time = c.getString(3);
-			    Date date = format.parse(time);
-			    String tzOffset = time.substring(time.length() - 5);
-			    TimeZone tz = TimeZone.getTimeZone("GMT"+tzOffset);
-			    newEvent.setTimeZone(tz);
-			    newEvent.setDate(date);
-			    GregorianCalendar cal = new GregorianCalendar();
-			    cal.setTime(date);
-			    cal.setTimeZone(tz);
-			    cal.add(GregorianCalendar.MINUTE, c.getInt(4));
-			    newEvent.setLength(c.getInt(4));
-			    newEvent.setEndDate(cal.getTime());
-			    newEvent.setRoomName(c.getString(5));
-			    
-			    // TODO this should be merged into a subquery if possible
-			    long trackId = c.getLong(6);
-			    newEvent.setAbstract(c.getString(7));
-			    newEvent.setInMySchedule(c.getInt(8) != 0);
-			    Cursor d = db.rawQuery("SELECT _id, color, name FROM tracks WHERE _id=" + trackId, null);
-			    if (d.moveToFirst()) {
-			    	newEvent.setColor(d.getString(1));
-			    	newEvent.setTrackName(d.getString(2));
-			    	if (d.getString(2).equalsIgnoreCase("meta")) {
-			    		newEvent.setMetaInformation(true);
-			    	}
-			    }
-			    d.close();
-
-			    // Get the speakers
-			    d = db.rawQuery("SELECT speakers._id, speakers.name, speakers.company, speakers.biography, speakers.photo_guid " +
-			    					   " FROM speakers INNER JOIN eventSpeakers ON eventSpeakers.speaker_id = speakers._id WHERE eventSpeakers.event_id=" + sqlId, null);
-			    d.moveToFirst();
-		        while (d.isAfterLast() == false) {
-		        	Speaker newSpeaker = new Speaker(d.getString(1),
-		        									 d.getString(2),
-		        									 d.getString(3),
-		        									 null);
-		        	newEvent.addSpeaker(newSpeaker);
-		        	d.moveToNext();
-		        }
-		        d.close();
-		        eventList.add(newEvent);
-			} catch (ParseException e) {  
-			    e.printStackTrace();  
-			}
+		    newEvent.setDate(new Date(c.getLong(3)));
+		    newEvent.setEndDate(new Date(c.getLong(4)));
+		    newEvent.setTimeZone(getTimeZone(c.getInt(5)));
+		    newEvent.setLength(c.getInt(6));
+		    newEvent.setRoomName(c.getString(7));
+		    if (!c.isNull(9)) {
+		    	newEvent.setColor(c.getString(8));
+		    	newEvent.setTrackName(c.getString(9));
+		    	if (c.getString(9).equalsIgnoreCase("meta")) {
+		    		newEvent.setMetaInformation(true);
+		    	}
+		    }
+		    newEvent.setAbstract(c.getString(10));
+		    newEvent.setInMySchedule(c.getInt(11) != 0);
+	        eventList.add(newEvent);
+	        eventMap.put(sqlId, newEvent);
+		}
+		c.close();
+		
+		if (eventList.size() == 0)
+			return eventList;
+		
+		// Get the speakers for every event in one go
+		sql = "SELECT eventSpeakers.event_id, speakers.name, speakers.company, speakers.biography "
+			+ "FROM eventSpeakers INNER JOIN speakers ON speakers._id = eventSpeakers.speaker_id "
+			+ "WHERE eventSpeakers.event_id IN (SELECT events._id FROM events " + where
+			+ (limit.length() > 0 ? " " + orderBy + " " + limit : "") + ") "
+			+ "ORDER BY eventSpeakers._id";
+		c = rawQuery(sql, args);
+		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+			Event event = eventMap.get(c.getLong(0));
+			if (event == null)
+				continue;
+			Speaker newSpeaker = new Speaker(c.getString(1),
+											 c.getString(2),
+											 c.getString(3),
+											 null);
+			event.addSpeaker(newSpeaker);
 		}
 		c.close();
 		return eventList;
 	}
 
+	// Event dates come from the API as ISO 8601 strings with a numeric
+	// offset, e.g. 2012-10-20T10:00:00+0200.  They're parsed once when
+	// the event is stored, and the read path only deals with the integers.
+	// Returns NO_DATE if the date is missing or can't be read.
+	static long parseEventDate(String date) {
+		if (date == null)
+			return NO_DATE;
+		SimpleDateFormat  format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+		try {
+			return format.parse(date).getTime();
+		} catch (ParseException e) {
+			return NO_DATE;
+		}
+	}
+	
+	static int parseTimeZoneOffset(String date) {
+		if (date == null || date.length() < 5)
+			return 0;
+		String tzOffset = date.substring(date.length() - 5);
+		try {
+			int hours = Integer.parseInt(tzOffset.substring(1, 3));
+			int minutes = Integer.parseInt(tzOffset.substring(3, 5));
+			int offset = hours * 60 + minutes;
+			return tzOffset.charAt(0) == '-' ? -offset : offset;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+	
+	private static TimeZone getTimeZone(int offsetMinutes) {
+		synchronized (sTimeZones) {
+			TimeZone tz = sTimeZones.get(offsetMinutes);
+			if (tz == null) {
+				int offset = Math.abs(offsetMinutes);
+				String id = String.format("GMT%s%02d:%02d", offsetMinutes < 0 ? "-" : "+", offset / 60, offset % 60);
+				tz = TimeZone.getTimeZone(id);
+				sTimeZones.put(offsetMinutes, tz);
+			}
+			return tz;
+		}
+	}
 }
@@ -11,18 +11,16 @@
 
 package de.incoherent.suseconferenceclient.app;
 
-import java.util.ArrayList;
-import java.util.List;
-
+import de.incoherent.suseconferenceclient.models.Facet;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.text.TextUtils;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
-	private static final int DATABASE_VERSION = 2;
+	private static final int DATABASE_VERSION = 10;
 	
 	private static final String conferencesTableCreate = "CREATE TABLE conferences ("
 			+ "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
@@ -50,8 +48,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 			+ "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
 			+ "venue_id INTEGER, "
 			+ "type VARCHAR, "
-			+ "lat VARCHAR,"
-			+ "lon VARCHAR, "
+			+ "lat_e6 INTEGER, "
+			+ "lon_e6 INTEGER, "
 			+ "name VARCHAR, "
 			+ "address VARCHAR, "
 			+ "description VARCHAR)";
@@ -63,7 +61,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 			+ "label VARCHAR, "
 			+ "lineColor INTEGER, "
 			+ "fillColor INTEGER, "
-			+ "pointList VARCHAR)";
+			+ "ring BLOB)";
 	
 	private static final String roomsTableCreate = "CREATE TABLE rooms ("
 			+ "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
@@ -85,7 +83,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 			+ "name VARCHAR, " 
 			+ "company VARCHAR, "
 			+ "biography VARCHAR, "
-			+ "photo_guid VARCHAR)";
+			+ "photo_guid VARCHAR, "
+			+ "conference_id INTEGER)";
 	
 	private static final String eventTableCreate = "CREATE TABLE events ("
 			+ "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -101,13 +100,91 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 			+ "language VARCHAR, "
 			+ "abstract VARCHAR, "
 			+ "url_list VARCHAR,"
-			+ "alert INTEGER DEFAULT 0)";
+			+ "alert INTEGER DEFAULT 0, "
+			+ "start_ms INTEGER, "
+			+ "end_ms INTEGER, "
+			+ "tz_offset_minutes INTEGER)";
+	
+	private static final String eventStartIndexCreate = "CREATE INDEX events_conference_start "
+			+ "ON events (conference_id, start_ms)";
 	
 	private static final String speakerEventTableCreate = "CREATE TABLE eventSpeakers ("
 			+ "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
 			+ "speaker_id INTEGER, "
 			+ "event_id INTEGER)";
 	
+	// What the user has done with an event: whether it's in My Schedule,
+	// whether there's an alert set for it, and the id of the calendar entry
+	// made for it.  It's keyed by guids rather than _ids, so it isn't
+	// touched when a conference's schedule is deleted and downloaded again.
+	private static final String userStateTableCreate = "CREATE TABLE userState ("
+			+ "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+			+ "conference_guid VARCHAR, "
+			+ "event_guid VARCHAR, "
+			+ "favorite INTEGER DEFAULT 0, "
+			+ "alert INTEGER DEFAULT 0, "
+			+ "calendar_id INTEGER DEFAULT -1, "
+			+ "UNIQUE (conference_guid, event_guid))";
+	
+	// Full text index used by Database.searchEvents().  The docid of each
+	// row is the _id of the event it was built from.
+	private static final String eventSearchTableCreate = "CREATE VIRTUAL TABLE eventsSearch USING fts3("
+			+ "title, abstract, speakers, companies, track)";
+	
+	static final String eventSearchPopulate = "INSERT INTO eventsSearch "
+			+ "(docid, title, abstract, speakers, companies, track) "
+			+ "SELECT events._id, events.title, events.abstract, "
+			+ "(SELECT group_concat(speakers.name, ' ') FROM eventSpeakers "
+			+ "INNER JOIN speakers ON speakers._id = eventSpeakers.speaker_id "
+			+ "WHERE eventSpeakers.event_id = events._id), "
+			+ "(SELECT group_concat(speakers.company, ' ') FROM eventSpeakers "
+			+ "INNER JOIN speakers ON speakers._id = eventSpeakers.speaker_id "
+			+ "WHERE eventSpeakers.event_id = events._id), "
+			+ "tracks.name "
+			+ "FROM events LEFT JOIN tracks ON tracks._id = events.track_id";
+	
+	// The languages and tracks of each conference, with how many events
+	// have each one, for the filter dialog.  kind is one of the Facet.KIND_
+	// constants.  Rebuilt whenever the conference is cached.
+	private static final String facetsTableCreate = "CREATE TABLE facets ("
+			+ "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+			+ "conference_id INTEGER, "
+			+ "kind INTEGER, "
+			+ "value VARCHAR, "
+			+ "label VARCHAR, "
+			+ "event_count INTEGER)";
+	
+	// The facets are filled with INSERT ... SELECT over events.  A WHERE
+	// clause on events can go between the select and the group by.
+	static final String languageFacetsPopulate = "INSERT INTO facets "
+			+ "(conference_id, kind, value, label, event_count) "
+			+ "SELECT events.conference_id, " + Facet.KIND_LANGUAGE + ", events.language, events.language, COUNT(*) "
+			+ "FROM events";
+	static final String languageFacetsGroup = " GROUP BY events.conference_id, events.language";
+	static final String trackFacetsPopulate = "INSERT INTO facets "
+			+ "(conference_id, kind, value, label, event_count) "
+			+ "SELECT events.conference_id, " + Facet.KIND_TRACK + ", events.track_id, tracks.name, COUNT(*) "
+			+ "FROM events INNER JOIN tracks ON tracks._id = events.track_id";
+	static final String trackFacetsGroup = " GROUP BY events.conference_id, events.track_id";
+	
+	// Secondary indexes for the lookups done in Database.  events by
+	// conference and start time is created separately above, since it
+	// was added in version 3.
+	private static final String[] indexCreates = {
+		"CREATE INDEX IF NOT EXISTS conferences_guid ON conferences (guid)",
+		"CREATE INDEX IF NOT EXISTS events_guid ON events (guid)",
+		"CREATE INDEX IF NOT EXISTS eventSpeakers_event ON eventSpeakers (event_id, speaker_id)",
+		// ScheduleDiff deletes a removed speaker's links by speaker
+		"CREATE INDEX IF NOT EXISTS eventSpeakers_speaker ON eventSpeakers (speaker_id)",
+		"CREATE INDEX IF NOT EXISTS tracks_conference ON tracks (conference_id)",
+		"CREATE INDEX IF NOT EXISTS rooms_venue ON rooms (venue_id)",
+		"CREATE INDEX IF NOT EXISTS points_venue ON points (venue_id)",
+		"CREATE INDEX IF NOT EXISTS mapPolygons_venue ON mapPolygons (venue_id)",
+		"CREATE INDEX IF NOT EXISTS events_room_start ON events (room_id, start_ms)",
+		"CREATE INDEX IF NOT EXISTS speakers_conference ON speakers (conference_id)",
+		"CREATE INDEX IF NOT EXISTS facets_conference ON facets (conference_id, kind)"
+	};
+	
 	public DatabaseHelper(Context context) {
 		super(context, "SUSEConferences", null, DATABASE_VERSION);
 	}
@@ -124,11 +201,16 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 		db.execSQL(speakerEventTableCreate);
 		db.execSQL(mapPointsTableCreate);
 		db.execSQL(mapPolygonTableCreate);
+		db.execSQL(eventStartIndexCreate);
+		db.execSQL(eventSearchTableCreate);
+		db.execSQL(userStateTableCreate);
+		db.execSQL(facetsTableCreate);
+		createIndexes(db);
 	}
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		if (oldVersion == 1) {
+		if (oldVersion < 2) {
 			Log.d("SUSEConferences", "Upgrading database");
 			db.execSQL("ALTER TABLE venues ADD COLUMN offline_map VARCHAR");
 			db.execSQL("ALTER TABLE venues ADD COLUMN offline_map_bounds VARCHAR");
@@ -142,43 +224,177 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 			db.execSQL("UPDATE venues SET alert=0");
 		}
 		
+		if (oldVersion < 3) {
+			Log.d("SUSEConferences", "Upgrading database to version 3");
+			db.execSQL("ALTER TABLE events ADD COLUMN start_ms INTEGER");
+			db.execSQL("ALTER TABLE events ADD COLUMN end_ms INTEGER");
+			db.execSQL("ALTER TABLE events ADD COLUMN tz_offset_minutes INTEGER");
+			backfillEventTimes(db);
+			db.execSQL(eventStartIndexCreate);
+		}
+		
+		if (oldVersion < 4) {
+			Log.d("SUSEConferences", "Upgrading database to version 4");
+			// The version 2 upgrade put the alert column on venues instead
+			// of events, so databases that started out as version 1 don't have it
+			if (!hasColumn(db, "events", "alert")) {
+				db.execSQL("ALTER TABLE events ADD COLUMN alert INTEGER DEFAULT 0");
+				db.execSQL("UPDATE events SET alert=0");
+			}
+			createIndexes(db);
+		}
+		
+		if (oldVersion < 5) {
+			Log.d("SUSEConferences", "Upgrading database to version 5");
+			db.execSQL(eventSearchTableCreate);
+			db.execSQL(eventSearchPopulate);
+		}
+		
+		if (oldVersion < 6) {
+			Log.d("SUSEConferences", "Upgrading database to version 6");
+			createIndexes(db);
+		}
+		
+		if (oldVersion < 7) {
+			Log.d("SUSEConferences", "Upgrading database to version 7");
+			db.execSQL("ALTER TABLE speakers ADD COLUMN conference_id INTEGER");
+			deleteOrphans(db);
+			db.execSQL("UPDATE speakers SET conference_id = "
+					+ "(SELECT events.conference_id FROM eventSpeakers "
+					+ "INNER JOIN events ON events._id = eventSpeakers.event_id "
+					+ "WHERE eventSpeakers.speaker_id = speakers._id LIMIT 1)");
+			createIndexes(db);
+		}
+		
+		if (oldVersion < 8) {
+			Log.d("SUSEConferences", "Upgrading database to version 8");
+			db.execSQL(userStateTableCreate);
+			db.execSQL("INSERT OR IGNORE INTO userState (conference_guid, event_guid, favorite, alert) "
+					+ "SELECT conferences.guid, events.guid, events.my_schedule, events.alert FROM events "
+					+ "INNER JOIN conferences ON conferences._id = events.conference_id "
+					+ "WHERE events.my_schedule = 1 OR events.alert = 1");
+		}
+		
+		if (oldVersion < 9) {
+			Log.d("SUSEConferences", "Upgrading database to version 9");
+			// Coordinates used to be stored as decimal strings; the old
+			// lat, lon and pointList columns are left in place, unused
+			db.execSQL("ALTER TABLE points ADD COLUMN lat_e6 INTEGER");
+			db.execSQL("ALTER TABLE points ADD COLUMN lon_e6 INTEGER");
+			db.execSQL("UPDATE points SET lat_e6 = CAST(CAST(lat AS REAL) * 1000000 AS INTEGER), "
+					+ "lon_e6 = CAST(CAST(lon AS REAL) * 1000000 AS INTEGER)");
+			db.execSQL("ALTER TABLE mapPolygons ADD COLUMN ring BLOB");
+			backfillPolygonRings(db);
+		}
+		
+		if (oldVersion < 10) {
+			Log.d("SUSEConferences", "Upgrading database to version 10");
+			db.execSQL(facetsTableCreate);
+			db.execSQL(languageFacetsPopulate + languageFacetsGroup);
+			db.execSQL(trackFacetsPopulate + trackFacetsGroup);
+			createIndexes(db);
+		}
 	}
-
-	public void clearDatabase(SQLiteDatabase db, long conferenceId) {
-		long venueId = -1;
-		String sql = "SELECT venue_id FROM conferences WHERE _id=" + conferenceId;
-		Cursor c = db.rawQuery(sql, null);
-		if (c.moveToFirst()) {
-			venueId = c.getLong(0);
+	
+	private void createIndexes(SQLiteDatabase db) {
+		for (String sql : indexCreates) {
+			db.execSQL(sql);
+		}
+	}
+	
+	private boolean hasColumn(SQLiteDatabase db, String table, String column) {
+		boolean found = false;
+		Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+			if (column.equals(c.getString(1))) {
+				found = true;
+				break;
+			}
 		}
 		c.close();
-		
-		sql = "SELECT _id FROM events WHERE conference_id=" + conferenceId;
-		List<String> eventList = new ArrayList<String>();
-		c = db.rawQuery(sql, null);
-		if (c.moveToFirst()) {
-			eventList.add(String.valueOf(c.getInt(0)));
+		return found;
+	}
+	
+	// Parse the date strings of events cached before version 3 into
+	// the integer start_ms/end_ms/tz_offset_minutes columns
+	private void backfillEventTimes(SQLiteDatabase db) {
+		SQLiteStatement update = db.compileStatement("UPDATE events SET start_ms = ?, end_ms = ?, tz_offset_minutes = ? WHERE _id = ?");
+		Cursor c = db.rawQuery("SELECT _id, date, length FROM events", null);
+		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+			String date = c.getString(1);
+			long startMs = Database.parseEventDate(date);
+			if (startMs == Database.NO_DATE)
+				continue;
+			update.bindLong(1, startMs);
+			update.bindLong(2, startMs + c.getInt(2) * 60000L);
+			update.bindLong(3, Database.parseTimeZoneOffset(date));
+			update.bindLong(4, c.getLong(0));
+			update.execute();
 		}
 		c.close();
+		update.close();
+	}
+
+	// Pack the "lon,lat;lon,lat" strings of polygons cached before
+	// version 9 into ring blobs
+	private void backfillPolygonRings(SQLiteDatabase db) {
+		SQLiteStatement update = db.compileStatement("UPDATE mapPolygons SET ring = ? WHERE _id = ?");
+		Cursor c = db.rawQuery("SELECT _id, pointList FROM mapPolygons", null);
+		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+			update.bindBlob(1, Database.packRing(Database.parsePointList(c.getString(1))));
+			update.bindLong(2, c.getLong(0));
+			update.execute();
+		}
+		c.close();
+		update.close();
+	}
+
+	// Before version 7, clearDatabase only deleted the first event's speakers
+	// and the first speaker, and left everything else behind when a conference
+	// was refreshed.  Delete every row that nothing points to any more.
+	private void deleteOrphans(SQLiteDatabase db) {
+		db.execSQL("DELETE FROM events WHERE conference_id NOT IN (SELECT _id FROM conferences)");
+		db.execSQL("DELETE FROM eventsSearch WHERE docid NOT IN (SELECT _id FROM events)");
+		db.execSQL("DELETE FROM eventSpeakers WHERE event_id NOT IN (SELECT _id FROM events)");
+		db.execSQL("DELETE FROM speakers WHERE _id NOT IN (SELECT speaker_id FROM eventSpeakers "
+				+ "WHERE speaker_id IS NOT NULL)");
+		db.execSQL("DELETE FROM tracks WHERE conference_id NOT IN (SELECT _id FROM conferences)");
+		db.execSQL("DELETE FROM venues WHERE _id NOT IN (SELECT venue_id FROM conferences "
+				+ "WHERE venue_id IS NOT NULL)");
+		db.execSQL("DELETE FROM rooms WHERE venue_id NOT IN (SELECT _id FROM venues)");
+		db.execSQL("DELETE FROM points WHERE venue_id NOT IN (SELECT _id FROM venues)");
+		db.execSQL("DELETE FROM mapPolygons WHERE venue_id NOT IN (SELECT _id FROM venues)");
+	}
 
-		String events = TextUtils.join(",", eventList);
-		sql = "SELECT speaker_id FROM eventSpeakers WHERE event_id IN (" + events + ")";
-		List<String> speakerList = new ArrayList<String>();
-		c = db.rawQuery(sql, null);
-		if (c.moveToFirst()) {
-			speakerList.add(String.valueOf(c.getInt(0)));
+	// Delete a conference's events, speakers, tracks and venue.  Every delete
+	// goes through an index on the conference or venue id, so the time this
+	// takes depends only on the size of this conference.  Run it inside a
+	// transaction.  Nothing calls this since refreshes switch schedules in
+	// place; it is kept, with tools/check-clear-database.py, for removing
+	// a conference.
+	public void clearDatabase(SQLiteDatabase db, long conferenceId) {
+		String[] conference = new String[] { String.valueOf(conferenceId) };
+		long venueId = -1;
+		Cursor c = db.rawQuery("SELECT venue_id FROM conferences WHERE _id = ?", conference);
+		if (c.moveToFirst() && !c.isNull(0)) {
+			venueId = c.getLong(0);
 		}
 		c.close();
-		String speakers = TextUtils.join(",", speakerList);
 		
-		db.execSQL("DELETE FROM speakers WHERE _id IN (" + speakers +")");
-		db.execSQL("DELETE FROM eventSpeakers WHERE event_id IN (" + events + ")");
-		db.execSQL("DELETE FROM venues WHERE _id=" + venueId);
-		db.execSQL("DELETE FROM points WHERE venue_id="+ venueId);
-		db.execSQL("DELETE FROM mapPolygons WHERE venue_id=" + venueId);
-		db.execSQL("DELETE FROM rooms WHERE venue_id=" + venueId);
-		db.execSQL("DELETE FROM tracks WHERE conference_id=" + conferenceId);
-		db.execSQL("DELETE FROM events WHERE conference_id=" + conferenceId);
+		db.execSQL("DELETE FROM eventsSearch WHERE docid IN (SELECT _id FROM events WHERE conference_id = ?)", conference);
+		db.execSQL("DELETE FROM eventSpeakers WHERE event_id IN (SELECT _id FROM events WHERE conference_id = ?)", conference);
+		db.execSQL("DELETE FROM speakers WHERE conference_id = ?", conference);
+		db.execSQL("DELETE FROM events WHERE conference_id = ?", conference);
+		db.execSQL("DELETE FROM tracks WHERE conference_id = ?", conference);
+		db.execSQL("DELETE FROM facets WHERE conference_id = ?", conference);
+		
+		if (venueId != -1) {
+			String[] venue = new String[] { String.valueOf(venueId) };
+			db.execSQL("DELETE FROM rooms WHERE venue_id = ?", venue);
+			db.execSQL("DELETE FROM points WHERE venue_id = ?", venue);
+			db.execSQL("DELETE FROM mapPolygons WHERE venue_id = ?", venue);
+			db.execSQL("DELETE FROM venues WHERE _id = ?", venue);
+		}
 	}
 
 }
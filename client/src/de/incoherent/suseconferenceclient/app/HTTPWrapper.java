@@ -10,54 +10,86 @@
  ******************************************************************************/
 package de.incoherent.suseconferenceclient.app;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.SocketException;
+import java.util.zip.GZIPInputStream;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.StatusLine;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.SingleClientConnManager;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import de.incoherent.suseconferenceclient.SUSEConferences;
+
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Log;
 
 /**
- * Convenience wrapper around HTTP calls.
+ * Convenience wrapper around HTTP calls.  Every call goes through one
+ * pooled, thread-safe client with timeouts and gzip.  Apart from images,
+ * replies are kept in HttpCache and asked for again with a conditional GET.
  *   
  * TODO This probably doesn't work with HTTPS
  */
 
 public class HTTPWrapper {
+	private static final int CONNECT_TIMEOUT_MS = 15000;
+	private static final int READ_TIMEOUT_MS = 30000;
+	// How long a request waits for a free connection from the pool
+	private static final long POOL_TIMEOUT_MS = 30000;
+	private static final int MAX_CONNECTIONS = 8;
+	private static final int MAX_CONNECTIONS_PER_HOST = 4;
+	
+	// Shared by every request, so connections to the same host are
+	// kept alive and reused instead of handshaking again each time
+	private static final DefaultHttpClient sClient = createClient();
 	
 	public static Bitmap getImage(String url) throws ClientProtocolException, IOException {
-		HttpClient client = new DefaultHttpClient();
 		HttpGet get = new HttpGet(url);
 		Log.d("SUSEConferences", "Get: " + url);
-		HttpResponse response = client.execute(get);
+		HttpResponse response = sClient.execute(get);
 		StatusLine statusLine = response.getStatusLine();
 		int statusCode = statusLine.getStatusCode();
+		final HttpEntity entity = response.getEntity();
 		if (statusCode >= 200 && statusCode <= 299) {
-			final HttpEntity entity = response.getEntity();
 	        if (entity != null) {
 	            InputStream inputStream = null;
 	            try {
@@ -74,70 +106,236 @@ public class HTTPWrapper {
 	        	throw new HttpResponseException(statusCode, statusLine.getReasonPhrase());
 	        }
 		} else {
+			release(entity);
         	throw new HttpResponseException(statusCode, statusLine.getReasonPhrase());
         }
 	}
 	
 	public static String getRawText(String url) throws ClientProtocolException, IOException {
-		HttpClient client = new DefaultHttpClient();
-		HttpGet get = new HttpGet(url);
 		Log.d("SUSEConferences", "Get: " + url);
-		HttpResponse response = client.execute(get);
+		return getBody(url, false);
+	}
+	
+	public static JSONObject get(String url) throws IllegalStateException, SocketException, 
+							UnsupportedEncodingException, IOException, JSONException {
+		return HTTPWrapper.parseResponse(getBody(url, false));
+	}
+	
+	// Like get(), but returns null when the server says the reply hasn't
+	// changed since it was last downloaded, for callers that already
+	// have what they parsed from it the last time
+	public static JSONObject getIfChanged(String url) throws IOException, JSONException {
+		String body = getBody(url, true);
+		if (body == null)
+			return null;
+		return HTTPWrapper.parseResponse(body);
+	}
+	
+	// Saves the body straight to the file rather than holding it in memory,
+	// for replies that are too big to parse in one go
+	public static void getToFile(String url, File file) throws IOException {
+		HttpCache cache = HttpCache.getInstance(SUSEConferences.getContext());
+		HttpCache.Entry cached = cache.get(url);
+		HttpResponse response = execute(url, cached);
 		StatusLine statusLine = response.getStatusLine();
 		int statusCode = statusLine.getStatusCode();
-		if (statusCode >= 200 && statusCode <= 299) {
-			StringBuilder builder = new StringBuilder();
-			HttpEntity responseEntity = response.getEntity();
-			InputStream content = responseEntity.getContent();
-			BufferedReader reader = new BufferedReader(new InputStreamReader(content));
-			String line;
-			while ((line = reader.readLine()) != null) {
-				builder.append(line);
+		HttpEntity entity = response.getEntity();
+		if (statusCode == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+			release(entity);
+			if (cache.copyBody(cached, file))
+				return;
+			// It was dropped from the cache in the meantime
+			getToFile(url, file);
+			return;
+		}
+		if (statusCode < 200 || statusCode > 299) {
+			release(entity);
+			throw new HttpResponseException(statusCode, statusLine.getReasonPhrase());
+		}
+		if (entity == null)
+			throw new HttpResponseException(statusCode, "Empty reply");
+
+		boolean success = false;
+		InputStream in = entity.getContent();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
 			}
-			return builder.toString();
-		} else {
+			success = true;
+		} finally {
+			in.close();
+			out.close();
+			if (!success)
+				file.delete();
+		}
+		String etag = headerValue(response, "ETag");
+		String lastModified = headerValue(response, "Last-Modified");
+		if (etag != null || lastModified != null)
+			cache.put(url, etag, lastModified, file);
+		else if (cached != null)
+			cache.remove(url);
+	}
+	
+	// The body of the reply, or the copy on disk if the server says it
+	// hasn't changed.  With ifChanged set the copy on disk isn't read,
+	// and null is returned instead.
+	private static String getBody(String url, boolean ifChanged) throws IOException {
+		HttpCache cache = HttpCache.getInstance(SUSEConferences.getContext());
+		HttpCache.Entry cached = cache.get(url);
+		HttpResponse response = execute(url, cached);
+		StatusLine statusLine = response.getStatusLine();
+		int statusCode = statusLine.getStatusCode();
+		if (statusCode == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+			release(response.getEntity());
+			Log.d("SUSEConferences", "Not modified: " + url);
+			if (ifChanged)
+				return null;
+			String body = cache.readBody(cached);
+			if (body != null)
+				return body;
+			// It was dropped from the cache in the meantime
+			return getBody(url, ifChanged);
+		}
+		if (statusCode < 200 || statusCode > 299) {
+			release(response.getEntity());
 			throw new HttpResponseException(statusCode, statusLine.getReasonPhrase());
 		}
 
+		String body = readBody(response.getEntity());
+		String etag = headerValue(response, "ETag");
+		String lastModified = headerValue(response, "Last-Modified");
+		if (etag != null || lastModified != null)
+			cache.put(url, etag, lastModified, body);
+		else if (cached != null)
+			cache.remove(url);
+		return body;
 	}
-	public static JSONObject get(String url) throws IllegalStateException, SocketException, 
-							UnsupportedEncodingException, IOException, JSONException {
+	
+	// A GET that is conditional on the cached copy, if there is one
+	private static HttpResponse execute(String url, HttpCache.Entry cached) throws IOException {
+		HttpGet get = new HttpGet(url);
+		if (cached != null) {
+			if (cached.etag != null)
+				get.addHeader("If-None-Match", cached.etag);
+			if (cached.lastModified != null)
+				get.addHeader("If-Modified-Since", cached.lastModified);
+		}
+		return sClient.execute(get);
+	}
+	
+	// For requests that need headers of their own, or that may be aborted
+	// from another thread.  Nothing is cached.
+	static HttpResponse execute(HttpUriRequest request) throws IOException {
+		return sClient.execute(request);
+	}
+	
+	static String headerValue(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header == null ? null : header.getValue();
+	}
+	
+	private static DefaultHttpClient createClient() {
 		HostnameVerifier hostnameVerifier = org.apache.http.conn.ssl.SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER;
-		DefaultHttpClient client = new DefaultHttpClient();
 		SchemeRegistry registry = new SchemeRegistry();
 		SSLSocketFactory socketFactory = SSLSocketFactory.getSocketFactory();
 		socketFactory.setHostnameVerifier((X509HostnameVerifier) hostnameVerifier);
 		registry.register(new Scheme("https", socketFactory, 443));
 		registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-		SingleClientConnManager mgr = new SingleClientConnManager(client.getParams(), registry);
-		DefaultHttpClient httpClient = new DefaultHttpClient(mgr, client.getParams());
 		HttpsURLConnection.setDefaultHostnameVerifier(hostnameVerifier);
 
-		HttpGet get = new HttpGet(url);
-		HttpResponse response = httpClient.execute(get);
-		StatusLine statusLine = response.getStatusLine();
-		int statusCode = statusLine.getStatusCode();
-		if (statusCode >= 200 && statusCode <= 299) {
-			return HTTPWrapper.parseResponse(response);
-		} else {
-			throw new HttpResponseException(statusCode, statusLine.getReasonPhrase());
-		}
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, "UTF-8");
+		HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT_MS);
+		HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT_MS);
+		HttpConnectionParams.setSocketBufferSize(params, 8192);
+		// Pooled connections can be dropped by the server while idle
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		ConnManagerParams.setTimeout(params, POOL_TIMEOUT_MS);
+		ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+
+		ThreadSafeClientConnManager mgr = new ThreadSafeClientConnManager(params, registry);
+		DefaultHttpClient client = new DefaultHttpClient(mgr, params);
+
+		// Ask for gzip, and unpack it when the server obliges
+		client.addRequestInterceptor(new HttpRequestInterceptor() {
+			@Override
+			public void process(HttpRequest request, HttpContext context) {
+				if (!request.containsHeader("Accept-Encoding"))
+					request.addHeader("Accept-Encoding", "gzip");
+			}
+		});
+		client.addResponseInterceptor(new HttpResponseInterceptor() {
+			@Override
+			public void process(HttpResponse response, HttpContext context) {
+				HttpEntity entity = response.getEntity();
+				if (entity == null)
+					return;
+				Header encoding = entity.getContentEncoding();
+				if (encoding == null)
+					return;
+				for (HeaderElement element : encoding.getElements()) {
+					if (element.getName().equalsIgnoreCase("gzip")) {
+						response.setEntity(new GzipEntity(entity));
+						return;
+					}
+				}
+			}
+		});
+		return client;
+	}
+	
+	// Hands the connection back to the pool when the body isn't wanted
+	static void release(HttpEntity entity) throws IOException {
+		if (entity != null)
+			entity.consumeContent();
 	}
 	
-	private static JSONObject parseResponse(HttpResponse response) throws IllegalStateException, IOException, UnsupportedEncodingException, JSONException {
-		StringBuilder builder = new StringBuilder();
-		HttpEntity responseEntity = response.getEntity();
-		InputStream content = responseEntity.getContent();
-		BufferedReader reader = new BufferedReader(new InputStreamReader(content));
-		String line;
-		while ((line = reader.readLine()) != null) {
-			builder.append(line);
+	private static class GzipEntity extends HttpEntityWrapper {
+		public GzipEntity(HttpEntity wrapped) {
+			super(wrapped);
+		}
+		
+		@Override
+		public InputStream getContent() throws IOException {
+			return new GZIPInputStream(wrappedEntity.getContent());
 		}
-		if (builder.length() == 0) {
+		
+		@Override
+		public long getContentLength() {
+			// Unknown once it's unpacked
+			return -1;
+		}
+	}
+	
+	private static JSONObject parseResponse(String body) throws JSONException {
+		if (body.length() == 0) {
 			return null;
 		} else {
-			JSONObject ret = new JSONObject(builder.toString());
+			JSONObject ret = new JSONObject(body);
 			return ret;
 		}
 	}
+	
+	// Reads the whole body, keeping its line breaks
+	private static String readBody(HttpEntity entity) throws IOException {
+		if (entity == null)
+			return "";
+		Reader reader = new InputStreamReader(entity.getContent(), "UTF-8");
+		try {
+			StringBuilder builder = new StringBuilder();
+			char[] buffer = new char[4096];
+			int count;
+			while ((count = reader.read(buffer)) != -1) {
+				builder.append(buffer, 0, count);
+			}
+			return builder.toString();
+		} finally {
+			reader.close();
+		}
+	}
 }
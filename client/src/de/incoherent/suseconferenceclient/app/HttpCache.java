@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Matt Barringer <matt@incoherent.de>.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Matt Barringer <matt@incoherent.de> - initial API and implementation
+ ******************************************************************************/
+package de.incoherent.suseconferenceclient.app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.content.Context;
+import android.util.Log;
+
+/*
+ * Keeps the last reply for each API url on disk, along with its ETag and
+ * Last-Modified headers, so HTTPWrapper can send a conditional GET and
+ * use the copy on disk when the server answers 304.  Only replies that
+ * came with at least one of those headers are kept.
+ *
+ * Each url gets a <md5>.meta file (url, ETag, Last-Modified) and a
+ * <md5>.body file.  When the cache grows past MAX_SIZE the least recently
+ * used entries are dropped.
+ */
+public class HttpCache {
+	private static final long MAX_SIZE = 8 * 1024 * 1024;
+	// Bigger replies than this aren't worth pushing everything else out for
+	private static final long MAX_ENTRY_SIZE = MAX_SIZE / 2;
+
+	private static HttpCache mInstance = null;
+	private final File mDir;
+
+	public static class Entry {
+		public final String etag;
+		public final String lastModified;
+		final File body;
+
+		Entry(String etag, String lastModified, File body) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.body = body;
+		}
+	}
+
+	public static synchronized HttpCache getInstance(Context context) {
+		if (mInstance == null)
+			mInstance = new HttpCache(new File(context.getCacheDir(), "http"));
+		return mInstance;
+	}
+
+	private HttpCache(File dir) {
+		this.mDir = dir;
+		dir.mkdirs();
+	}
+
+	// The validators for a url, or null if nothing usable is cached
+	public synchronized Entry get(String url) {
+		String key = keyFor(url);
+		File meta = new File(mDir, key + ".meta");
+		File body = new File(mDir, key + ".body");
+		if (!meta.exists() || !body.exists())
+			return null;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(meta)));
+			if (!url.equals(in.readUTF()))
+				return null;
+			String etag = in.readUTF();
+			String lastModified = in.readUTF();
+			return new Entry(etag.length() == 0 ? null : etag,
+							 lastModified.length() == 0 ? null : lastModified,
+							 body);
+		} catch (IOException e) {
+			Log.d("SUSEConferences", "Dropping unreadable cache entry for " + url);
+			removeKey(key);
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	// Marks the entry as just used and returns its body, or null if it
+	// has gone missing since get()
+	public synchronized String readBody(Entry entry) throws IOException {
+		if (!entry.body.exists())
+			return null;
+		entry.body.setLastModified(System.currentTimeMillis());
+		Reader reader = new InputStreamReader(new FileInputStream(entry.body), "UTF-8");
+		try {
+			StringBuilder builder = new StringBuilder();
+			char[] buffer = new char[4096];
+			int count;
+			while ((count = reader.read(buffer)) != -1) {
+				builder.append(buffer, 0, count);
+			}
+			return builder.toString();
+		} finally {
+			reader.close();
+		}
+	}
+
+	// Copies the entry's body to the file; false if it has gone missing
+	public synchronized boolean copyBody(Entry entry, File to) throws IOException {
+		if (!entry.body.exists())
+			return false;
+		entry.body.setLastModified(System.currentTimeMillis());
+		copy(new FileInputStream(entry.body), to);
+		return true;
+	}
+
+	public void put(String url, String etag, String lastModified, String body) {
+		try {
+			byte[] bytes = body.getBytes("UTF-8");
+			if (bytes.length > MAX_ENTRY_SIZE)
+				return;
+			synchronized (this) {
+				// Drop the old validators first, so they can't end up
+				// next to a half written body
+				String key = keyFor(url);
+				removeKey(key);
+				OutputStream out = new FileOutputStream(new File(mDir, key + ".body"));
+				try {
+					out.write(bytes);
+				} finally {
+					out.close();
+				}
+				writeMeta(key, url, etag, lastModified);
+				trim();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void put(String url, String etag, String lastModified, File body) {
+		if (body.length() > MAX_ENTRY_SIZE)
+			return;
+		try {
+			synchronized (this) {
+				String key = keyFor(url);
+				removeKey(key);
+				copy(new FileInputStream(body), new File(mDir, key + ".body"));
+				writeMeta(key, url, etag, lastModified);
+				trim();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized void remove(String url) {
+		removeKey(keyFor(url));
+	}
+
+	private void writeMeta(String key, String url, String etag, String lastModified) throws IOException {
+		File meta = new File(mDir, key + ".meta");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(meta)));
+		boolean success = false;
+		try {
+			out.writeUTF(url);
+			out.writeUTF(etag == null ? "" : etag);
+			out.writeUTF(lastModified == null ? "" : lastModified);
+			success = true;
+		} finally {
+			out.close();
+			if (!success)
+				removeKey(key);
+		}
+	}
+
+	// Drops the least recently used bodies until the cache fits
+	private void trim() {
+		File[] bodies = mDir.listFiles();
+		if (bodies == null)
+			return;
+		long size = 0;
+		for (File f : bodies) {
+			size += f.length();
+		}
+		if (size <= MAX_SIZE)
+			return;
+
+		Arrays.sort(bodies, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				long l = lhs.lastModified();
+				long r = rhs.lastModified();
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+		for (File f : bodies) {
+			if (size <= MAX_SIZE)
+				break;
+			String name = f.getName();
+			if (!name.endsWith(".body"))
+				continue;
+			String key = name.substring(0, name.length() - ".body".length());
+			File meta = new File(mDir, key + ".meta");
+			size -= f.length() + meta.length();
+			removeKey(key);
+		}
+	}
+
+	private void removeKey(String key) {
+		new File(mDir, key + ".meta").delete();
+		new File(mDir, key + ".body").delete();
+	}
+
+	private static void copy(InputStream in, File to) throws IOException {
+		boolean success = false;
+		OutputStream out = new FileOutputStream(to);
+		try {
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+			success = true;
+		} finally {
+			in.close();
+			out.close();
+			if (!success)
+				to.delete();
+		}
+	}
+
+	private static void close(InputStream in) {
+		if (in == null)
+			return;
+		try {
+			in.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private static String keyFor(String url) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] hash = digest.digest(url.getBytes("UTF-8"));
+			StringBuilder key = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				key.append(String.format("%02x", b & 0xff));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Matt Barringer <matt@incoherent.de>.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Matt Barringer <matt@incoherent.de> - initial API and implementation
+ ******************************************************************************/
+package de.incoherent.suseconferenceclient.app;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+/*
+ * Walks one array of a downloaded JSON file, e.g. "events" in events.json,
+ * handing each element to the handler as it is read.  Only one element is
+ * in memory at a time, so a big schedule doesn't need the whole reply as a
+ * String and a JSONObject tree.
+ *
+ * JsonReader only exists from Honeycomb on; older devices read the file
+ * into a JSONObject as before.
+ */
+public class JsonArrayReader {
+	public interface ElementHandler {
+		public void element(JSONObject element) throws JSONException;
+	}
+
+	public static void read(File file, String arrayName, ElementHandler handler) throws IOException, JSONException {
+		Reader reader = new InputStreamReader(new BufferedInputStream(new FileInputStream(file)), "UTF-8");
+		try {
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+				stream(reader, arrayName, handler);
+			else
+				parse(reader, arrayName, handler);
+		} finally {
+			reader.close();
+		}
+	}
+
+	// Reads the file's top level object, leaving out the named values, so
+	// the small parts of a file can be had without loading its big arrays.
+	// A value that was left out is there as JSONObject.NULL, so has()
+	// still says whether the file had it.  A truncated file throws.
+	public static JSONObject readWithout(File file, String... skipNames) throws IOException, JSONException {
+		HashSet<String> skip = new HashSet<String>(Arrays.asList(skipNames));
+		Reader reader = new InputStreamReader(new BufferedInputStream(new FileInputStream(file)), "UTF-8");
+		try {
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+				return streamWithout(reader, skip);
+			JSONObject object = new JSONObject(readAll(reader));
+			for (String name : skip) {
+				if (object.has(name))
+					object.put(name, JSONObject.NULL);
+			}
+			return object;
+		} finally {
+			reader.close();
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static JSONObject streamWithout(Reader in, HashSet<String> skip) throws IOException, JSONException {
+		JsonReader reader = new JsonReader(in);
+		try {
+			JSONObject object = new JSONObject();
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (skip.contains(name)) {
+					reader.skipValue();
+					object.put(name, JSONObject.NULL);
+				} else {
+					object.put(name, readValue(reader));
+				}
+			}
+			reader.endObject();
+			return object;
+		} catch (IllegalStateException e) {
+			throw new JSONException(e.getMessage());
+		} catch (MalformedJsonException e) {
+			throw new JSONException(e.getMessage());
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static void stream(Reader in, String arrayName, ElementHandler handler) throws IOException, JSONException {
+		JsonReader reader = new JsonReader(in);
+		try {
+			boolean found = false;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (!found && arrayName.equals(name)) {
+					found = true;
+					reader.beginArray();
+					while (reader.hasNext()) {
+						handler.element(readObject(reader));
+					}
+					reader.endArray();
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			if (!found)
+				throw new JSONException("No value for " + arrayName);
+		} catch (IllegalStateException e) {
+			// JsonReader throws this when the file isn't shaped the way we expect
+			throw new JSONException(e.getMessage());
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+		JSONObject object = new JSONObject();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			object.put(name, readValue(reader));
+		}
+		reader.endObject();
+		return object;
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static Object readValue(JsonReader reader) throws IOException, JSONException {
+		JsonToken token = reader.peek();
+		switch (token) {
+		case BEGIN_OBJECT:
+			return readObject(reader);
+		case BEGIN_ARRAY:
+			JSONArray array = new JSONArray();
+			reader.beginArray();
+			while (reader.hasNext()) {
+				array.put(readValue(reader));
+			}
+			reader.endArray();
+			return array;
+		case BOOLEAN:
+			return Boolean.valueOf(reader.nextBoolean());
+		case NULL:
+			reader.nextNull();
+			return JSONObject.NULL;
+		default:
+			// Strings, and numbers as written, which JSONObject's
+			// getInt() and friends convert when asked
+			return reader.nextString();
+		}
+	}
+
+	private static void parse(Reader reader, String arrayName, ElementHandler handler) throws IOException, JSONException {
+		JSONArray array = new JSONObject(readAll(reader)).getJSONArray(arrayName);
+		int len = array.length();
+		for (int i = 0; i < len; i++) {
+			handler.element(array.getJSONObject(i));
+		}
+	}
+
+	private static String readAll(Reader reader) throws IOException {
+		StringBuilder builder = new StringBuilder();
+		char[] buffer = new char[4096];
+		int count;
+		while ((count = reader.read(buffer)) != -1) {
+			builder.append(buffer, 0, count);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Matt Barringer <matt@incoherent.de>.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Matt Barringer <matt@incoherent.de> - initial API and implementation
+ ******************************************************************************/
+package de.incoherent.suseconferenceclient.app;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpGet;
+
+import android.util.Log;
+
+/*
+ * Downloads an offline map to <file>.part and only renames it to <file>
+ * once it is complete and, if the server publishes <url>.md5, matches
+ * that checksum, so a half downloaded or corrupt map is never opened.
+ *
+ * An interrupted download is picked up where it stopped with a Range
+ * request.  The ETag or Last-Modified of the first reply is kept in
+ * <file>.part.tag and sent as If-Range, so if the map changed on the
+ * server in the meantime it is downloaded again from the start.
+ */
+public class MapDownloader {
+	public interface ProgressListener {
+		// total is -1 if the server didn't say how big the map is
+		public void progress(long downloaded, long total);
+	}
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// Don't tell the listener more often than this
+	private static final long PROGRESS_INTERVAL_MS = 250;
+
+	private final String mUrl;
+	private final File mFile;
+	private final File mPartFile;
+	private final File mTagFile;
+	private final ProgressListener mListener;
+	private volatile boolean mCancelled = false;
+	private volatile HttpGet mRequest = null;
+	private long mLastProgress = 0;
+
+	public MapDownloader(String url, File file, ProgressListener listener) {
+		this.mUrl = url;
+		this.mFile = file;
+		this.mPartFile = new File(file.getPath() + ".part");
+		this.mTagFile = new File(file.getPath() + ".part.tag");
+		this.mListener = listener;
+	}
+
+	// Can be called from any thread.  What has been downloaded so far is
+	// kept, so the next download() carries on from there.
+	public void cancel() {
+		mCancelled = true;
+		HttpGet request = mRequest;
+		if (request != null)
+			request.abort();
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	// Returns true once the map is in place, or false if it was cancelled.
+	// Anything else that goes wrong is thrown.
+	public boolean download() throws IOException {
+		try {
+			String expected = getExpectedChecksum();
+			if (mCancelled)
+				return false;
+			// Nothing to check the map against, so don't spend time hashing it
+			MessageDigest digest = expected == null ? null : newDigest();
+			if (!fetch(digest, true))
+				return false;
+
+			if (expected != null) {
+				String actual = toHex(digest.digest());
+				if (!expected.equalsIgnoreCase(actual)) {
+					discardPartial();
+					throw new IOException("The downloaded map is damaged (checksum " + actual + ", expected " + expected + ")");
+				}
+			} else {
+				Log.d("SUSEConferences", "No checksum published for " + mUrl);
+			}
+
+			mTagFile.delete();
+			// Same directory, so this is a rename rather than a copy
+			if (!mPartFile.renameTo(mFile))
+				throw new IOException("Couldn't move the map into place at " + mFile.getPath());
+			return true;
+		} catch (IOException e) {
+			// Aborting the request shows up as an IOException on the read
+			if (mCancelled)
+				return false;
+			throw e;
+		}
+	}
+
+	public void discardPartial() {
+		mPartFile.delete();
+		mTagFile.delete();
+	}
+
+	// Downloads into the .part file, carrying on from what is already
+	// there if the server allows it, and feeds every byte of the whole
+	// map through the digest, if there is one.  Returns false if cancelled.
+	private boolean fetch(MessageDigest digest, boolean mayResume) throws IOException {
+		long offset = mPartFile.exists() ? mPartFile.length() : 0;
+		String tag = readTag();
+		HttpGet request = new HttpGet(mUrl);
+		// A compressed reply would make the byte ranges meaningless
+		request.addHeader("Accept-Encoding", "identity");
+		if (offset > 0 && tag != null) {
+			request.addHeader("Range", "bytes=" + offset + "-");
+			request.addHeader("If-Range", tag);
+		} else {
+			offset = 0;
+		}
+		mRequest = request;
+		if (mCancelled)
+			return false;
+
+		HttpResponse response = HTTPWrapper.execute(request);
+		StatusLine statusLine = response.getStatusLine();
+		int statusCode = statusLine.getStatusCode();
+		HttpEntity entity = response.getEntity();
+		if (statusCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && offset > 0 && mayResume) {
+			// The .part file is no use for this map; start again
+			HTTPWrapper.release(entity);
+			Log.d("SUSEConferences", "Can't resume the map download, restarting");
+			discardPartial();
+			return fetch(digest, false);
+		}
+		if (statusCode != HttpStatus.SC_OK && statusCode != HttpStatus.SC_PARTIAL_CONTENT) {
+			HTTPWrapper.release(entity);
+			throw new HttpResponseException(statusCode, statusLine.getReasonPhrase());
+		}
+		if (entity == null)
+			throw new HttpResponseException(statusCode, "Empty reply");
+
+		boolean resuming = statusCode == HttpStatus.SC_PARTIAL_CONTENT;
+		if (resuming) {
+			Log.d("SUSEConferences", "Resuming the map download at " + offset + " bytes");
+			if (digest != null)
+				hashFile(mPartFile, digest);
+		} else {
+			// Either a fresh start, or the map changed and If-Range sent it all
+			offset = 0;
+			writeTag(response);
+		}
+		long length = entity.getContentLength();
+		long total = length < 0 ? -1 : offset + length;
+
+		InputStream in = entity.getContent();
+		OutputStream out = new FileOutputStream(mPartFile, resuming);
+		long downloaded = offset;
+		boolean finished = false;
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int count;
+			while (!mCancelled && (count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+				if (digest != null)
+					digest.update(buffer, 0, count);
+				downloaded += count;
+				publishProgress(downloaded, total, false);
+			}
+			finished = !mCancelled;
+		} finally {
+			out.close();
+			// Closing the stream early would read the rest of the map
+			// just to reuse the connection
+			if (finished)
+				in.close();
+			else
+				request.abort();
+			mRequest = null;
+		}
+		if (mCancelled)
+			return false;
+		if (total != -1 && downloaded != total)
+			throw new IOException("The map download ended early, after " + downloaded + " of " + total + " bytes");
+		publishProgress(downloaded, total, true);
+		return true;
+	}
+
+	// The published MD5 of the map, or null if there isn't one.  The file
+	// is in md5sum's format, or just the hash.  The checksum is optional,
+	// so an error reply or a file that isn't a hash just means there's
+	// nothing to check the map against; only a network failure is thrown.
+	private String getExpectedChecksum() throws IOException {
+		String reply;
+		try {
+			reply = HTTPWrapper.getRawText(mUrl + ".md5");
+		} catch (HttpResponseException e) {
+			Log.d("SUSEConferences", "No map checksum, the server replied " + e.getStatusCode());
+			return null;
+		}
+		String hash = reply.trim().split("\\s+")[0];
+		if (!hash.matches("[0-9a-fA-F]{32}")) {
+			Log.d("SUSEConferences", "Ignoring an unreadable map checksum");
+			return null;
+		}
+		return hash;
+	}
+
+	private void publishProgress(long downloaded, long total, boolean done) {
+		long now = System.currentTimeMillis();
+		if (!done && now - mLastProgress < PROGRESS_INTERVAL_MS)
+			return;
+		mLastProgress = now;
+		mListener.progress(downloaded, total);
+	}
+
+	private String readTag() throws IOException {
+		if (!mTagFile.exists())
+			return null;
+		InputStream in = new FileInputStream(mTagFile);
+		try {
+			byte[] bytes = new byte[(int) mTagFile.length()];
+			int read = 0;
+			while (read < bytes.length) {
+				int count = in.read(bytes, read, bytes.length - read);
+				if (count == -1)
+					break;
+				read += count;
+			}
+			String tag = new String(bytes, 0, read, "UTF-8");
+			return tag.length() == 0 ? null : tag;
+		} finally {
+			in.close();
+		}
+	}
+
+	// Only a strong ETag, or a Last-Modified date, is any use for If-Range
+	private void writeTag(HttpResponse response) throws IOException {
+		String tag = HTTPWrapper.headerValue(response, "ETag");
+		if (tag != null && tag.startsWith("W/"))
+			tag = null;
+		if (tag == null)
+			tag = HTTPWrapper.headerValue(response, "Last-Modified");
+		if (tag == null) {
+			mTagFile.delete();
+			return;
+		}
+		OutputStream out = new FileOutputStream(mTagFile);
+		try {
+			out.write(tag.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void hashFile(File file, MessageDigest digest) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b & 0xff));
+		}
+		return hex.toString();
+	}
+}
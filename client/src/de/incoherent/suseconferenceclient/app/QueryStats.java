@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Matt Barringer <matt@incoherent.de>.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Matt Barringer <matt@incoherent.de> - initial API and implementation
+ ******************************************************************************/
+
+package de.incoherent.suseconferenceclient.app;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+/*
+ * Timing for database work.  Every task queued through Database.read()
+ * and write() is one call, named after the method that queued it, e.g.
+ * "HomeActivity.showStoredConferences", and every statement Database runs
+ * goes through startQuery() and endQuery().  For each call name this keeps
+ * a latency histogram, the rows its queries returned and how many
+ * statements it ran.  Statements run outside a task, straight from an
+ * AsyncTask for instance, are counted one by one under DIRECT.  Statements
+ * that take longer than the slow query threshold are kept, with their SQL,
+ * in a short log.
+ *
+ * It's off by default.  While it's off begin() and startQuery() only read
+ * a volatile flag, and end() and endQuery() return straight away.
+ */
+public class QueryStats {
+	// Upper bounds of the latency buckets, in milliseconds.  The
+	// last bucket holds everything slower than the last bound.
+	private static final long[] BUCKET_LIMITS_MS = { 1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024 };
+	private static final int SLOW_LOG_SIZE = 50;
+
+	// The call name statements run outside a task are counted under
+	static final String DIRECT = "(outside read/write)";
+
+	private static volatile boolean sEnabled = false;
+	private static volatile long sSlowQueryNanos = 50 * 1000000L;
+
+	// The task running on each thread, innermost first
+	private static final ThreadLocal<Call> sCurrent = new ThreadLocal<Call>();
+	private static final HashMap<Class<?>, String> sTaskNames = new HashMap<Class<?>, String>();
+	private static final HashMap<String, MethodStats> sMethods = new HashMap<String, MethodStats>();
+	private static final LinkedList<SlowQuery> sSlowQueries = new LinkedList<SlowQuery>();
+
+	// One run of a task
+	static class Call {
+		final String method;
+		final long start;
+		final Call parent;
+		int queries = 0;
+		int rows = 0;
+
+		Call(String method, long start, Call parent) {
+			this.method = method;
+			this.start = start;
+			this.parent = parent;
+		}
+	}
+
+	private static class MethodStats {
+		final long[] buckets = new long[BUCKET_LIMITS_MS.length + 1];
+		long calls = 0;
+		long totalNanos = 0;
+		long maxNanos = 0;
+		long rows = 0;
+		long queries = 0;
+		int maxQueries = 0;
+	}
+
+	private static class SlowQuery {
+		final long time;
+		final String method;
+		final String sql;
+		final long nanos;
+		final int rows;
+
+		SlowQuery(long time, String method, String sql, long nanos, int rows) {
+			this.time = time;
+			this.method = method;
+			this.sql = sql;
+			this.nanos = nanos;
+			this.rows = rows;
+		}
+	}
+
+	public static void setEnabled(boolean enabled) {
+		sEnabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	public static void setSlowQueryThreshold(long millis) {
+		sSlowQueryNanos = millis * 1000000L;
+	}
+
+	public static void reset() {
+		synchronized (sMethods) {
+			sMethods.clear();
+		}
+		synchronized (sSlowQueries) {
+			sSlowQueries.clear();
+		}
+	}
+
+	// Returns null when stats are off; end() ignores it
+	static Call begin(String method) {
+		if (!sEnabled)
+			return null;
+		Call call = new Call(method, System.nanoTime(), sCurrent.get());
+		sCurrent.set(call);
+		return call;
+	}
+
+	static void end(Call call) {
+		if (call == null)
+			return;
+		long nanos = System.nanoTime() - call.start;
+		sCurrent.set(call.parent);
+		// A task run from inside another one counts towards both
+		if (call.parent != null) {
+			call.parent.queries += call.queries;
+			call.parent.rows += call.rows;
+		}
+		record(call.method, nanos, call.rows, call.queries);
+	}
+
+	private static void record(String method, long nanos, int rows, int queries) {
+		synchronized (sMethods) {
+			MethodStats stats = sMethods.get(method);
+			if (stats == null) {
+				stats = new MethodStats();
+				sMethods.put(method, stats);
+			}
+			stats.buckets[bucketFor(nanos)]++;
+			stats.calls++;
+			stats.totalNanos += nanos;
+			stats.maxNanos = Math.max(stats.maxNanos, nanos);
+			stats.rows += rows;
+			stats.queries += queries;
+			stats.maxQueries = Math.max(stats.maxQueries, queries);
+		}
+	}
+
+	// The class and method an anonymous task was written in, which is
+	// the code that queued it
+	static String taskName(Object task) {
+		Class<?> type = task.getClass();
+		synchronized (sTaskNames) {
+			String name = sTaskNames.get(type);
+			if (name != null)
+				return name;
+			Method method = type.getEnclosingMethod();
+			Class<?> outer = type.getEnclosingClass();
+			if (method != null && outer != null)
+				name = outer.getSimpleName() + "." + method.getName();
+			else
+				name = type.getName();
+			sTaskNames.put(type, name);
+			return name;
+		}
+	}
+
+	// Returns 0 when stats are off; endQuery() ignores it
+	static long startQuery() {
+		return sEnabled ? System.nanoTime() : 0;
+	}
+
+	static void endQuery(String sql, long start, int rows) {
+		if (start == 0)
+			return;
+		long nanos = System.nanoTime() - start;
+		Call call = sCurrent.get();
+		if (call != null) {
+			call.queries++;
+			call.rows += rows;
+		} else {
+			record(DIRECT, nanos, rows, 1);
+		}
+
+		if (nanos >= sSlowQueryNanos) {
+			String method = call == null ? DIRECT : call.method;
+			synchronized (sSlowQueries) {
+				sSlowQueries.addLast(new SlowQuery(System.currentTimeMillis(), method, sql, nanos, rows));
+				if (sSlowQueries.size() > SLOW_LOG_SIZE)
+					sSlowQueries.removeFirst();
+			}
+		}
+	}
+
+	private static int bucketFor(long nanos) {
+		long millis = nanos / 1000000L;
+		for (int i = 0; i < BUCKET_LIMITS_MS.length; i++) {
+			if (millis < BUCKET_LIMITS_MS[i])
+				return i;
+		}
+		return BUCKET_LIMITS_MS.length;
+	}
+
+	public static void dump(PrintWriter out) {
+		out.println("Database tasks (" + (sEnabled ? "enabled" : "disabled") + ")");
+		synchronized (sMethods) {
+			List<String> methods = new ArrayList<String>(sMethods.keySet());
+			Collections.sort(methods);
+			for (String method : methods) {
+				MethodStats stats = sMethods.get(method);
+				out.println(String.format("%s: %d calls, avg %.2f ms, max %.2f ms, %d rows, %d queries (max %d in one call)",
+						method,
+						stats.calls,
+						stats.totalNanos / (double) stats.calls / 1000000.0,
+						stats.maxNanos / 1000000.0,
+						stats.rows,
+						stats.queries,
+						stats.maxQueries));
+				StringBuilder histogram = new StringBuilder("   ");
+				for (int i = 0; i < stats.buckets.length; i++) {
+					if (stats.buckets[i] == 0)
+						continue;
+					if (i < BUCKET_LIMITS_MS.length)
+						histogram.append(" <").append(BUCKET_LIMITS_MS[i]).append("ms:");
+					else
+						histogram.append(" >=").append(BUCKET_LIMITS_MS[i - 1]).append("ms:");
+					histogram.append(stats.buckets[i]);
+				}
+				out.println(histogram.toString());
+			}
+		}
+
+		out.println("Slow queries (>= " + (sSlowQueryNanos / 1000000L) + " ms)");
+		synchronized (sSlowQueries) {
+			for (SlowQuery query : sSlowQueries) {
+				out.println(String.format("%tT %s %.2f ms, %d rows: %s",
+						new Date(query.time),
+						query.method,
+						query.nanos / 1000000.0,
+						query.rows,
+						query.sql));
+			}
+		}
+		out.flush();
+	}
+
+	public static void dumpToLog() {
+		StringWriter writer = new StringWriter();
+		dump(new PrintWriter(writer));
+		for (String line : TextUtils.split(writer.toString(), "\n")) {
+			Log.d("SUSEConferences", line);
+		}
+	}
+
+	public static void dumpToFile(File file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			dump(out);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Matt Barringer <matt@incoherent.de>.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Matt Barringer <matt@incoherent.de> - initial API and implementation
+ ******************************************************************************/
+package de.incoherent.suseconferenceclient.app;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/*
+ * The schedule check alarm.  Not exported, so only the alarm set by
+ * ScheduleSyncService can start a sync.  The wake lock is taken here,
+ * before the device can go back to sleep, and the service releases it.
+ */
+public class ScheduleAlarmReceiver extends BroadcastReceiver {
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		if (ScheduleSyncService.ACTION_SYNC.equals(intent.getAction())) {
+			ScheduleSyncService.acquireWakeLock(context);
+			context.startService(new Intent(context, ScheduleSyncService.class));
+		}
+	}
+}
@@ -0,0 +1,363 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Matt Barringer <matt@incoherent.de>.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Matt Barringer <matt@incoherent.de> - initial API and implementation
+ ******************************************************************************/
+package de.incoherent.suseconferenceclient.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import de.incoherent.suseconferenceclient.models.ChangeSet;
+
+import android.graphics.Color;
+import android.text.TextUtils;
+
+/*
+ * Brings the stored copy of a conference in line with a fresh download.
+ * Rooms, tracks, speakers and events are matched up by guid: new ones are
+ * inserted, ones that differ are updated in place (keeping their _id) and
+ * ones that are gone are deleted.  Anything that is the same is left
+ * alone.  For a conference that isn't cached yet this is just the inserts.
+ *
+ * The venue's points and polygons are small, so they are always replaced.
+ *
+ * Call apply() on the database's writer thread, inside a bulk insert.
+ */
+class ScheduleDiff {
+	// Stored columns, in the order the new values are compared against
+	private static final String[] VENUE_COLUMNS = { "name", "address", "offline_map", "offline_map_bounds", "info_text" };
+	private static final String[] ROOM_COLUMNS = { "name", "description" };
+	private static final String[] TRACK_COLUMNS = { "name", "color" };
+	private static final String[] SPEAKER_COLUMNS = { "name", "company", "biography" };
+	private static final String[] EVENT_COLUMNS = { "room_id", "track_id", "date", "length", "type",
+													"language", "title", "abstract" };
+	// Which of EVENT_COLUMNS mean the event has moved if they change
+	private static final int EVENT_ROOM = 0;
+	private static final int EVENT_DATE = 2;
+	private static final int EVENT_LENGTH = 3;
+
+	private final Database mDb;
+	private final long mConferenceId;
+	private final ChangeSet mChanges = new ChangeSet();
+	private final HashMap<String, Long> mRoomIds = new HashMap<String, Long>();
+	private final HashMap<String, Long> mTrackIds = new HashMap<String, Long>();
+	private final HashMap<String, Long> mSpeakerIds = new HashMap<String, Long>();
+
+	ScheduleDiff(Database db, long conferenceId) {
+		this.mDb = db;
+		this.mConferenceId = conferenceId;
+	}
+
+	ChangeSet apply(JSONObject venue,
+					String info,
+					JSONObject roomsReply,
+					JSONObject tracksReply,
+					File speakersFile,
+					File eventsFile) throws IOException, JSONException {
+		long oldVenueId = mDb.getConferenceVenue(mConferenceId);
+		long venueId = applyVenue(venue, info, oldVenueId);
+
+		String[] conference = new String[] { String.valueOf(mConferenceId) };
+		// Rooms belong to the venue rather than the conference
+		HashMap<String, String[]> oldRooms = mDb.getRowsByGuid("rooms", ROOM_COLUMNS,
+				"venue_id = ?", new String[] { String.valueOf(oldVenueId) });
+		HashMap<String, String[]> oldTracks = mDb.getRowsByGuid("tracks", TRACK_COLUMNS,
+				"conference_id = ?", conference);
+		final HashMap<String, String[]> oldSpeakers = mDb.getRowsByGuid("speakers", SPEAKER_COLUMNS,
+				"conference_id = ?", conference);
+		final HashMap<String, String[]> oldEvents = mDb.getRowsByGuid("events", EVENT_COLUMNS,
+				"conference_id = ?", conference);
+		final HashMap<Long, String> oldEventSpeakers = mDb.getEventSpeakerKeys(mConferenceId);
+
+		JSONArray rooms = roomsReply.getJSONArray("rooms");
+		int roomsLen = rooms.length();
+		for (int i = 0; i < roomsLen; i++) {
+			JSONObject room = rooms.getJSONObject(i);
+			String guid = room.getString("guid");
+			String name = room.getString("name");
+			String description = room.getString("description");
+			String[] old = oldRooms.remove(guid);
+			if (old == null) {
+				mRoomIds.put(guid, mDb.insertRoom(guid, name, description, venueId));
+				mChanges.getRooms().added(guid);
+			} else {
+				long roomId = Long.parseLong(old[0]);
+				if (venueId != oldVenueId || !same(old, name, description)) {
+					mDb.updateRoom(roomId, name, description, venueId);
+					mChanges.getRooms().updated(guid);
+				}
+				mRoomIds.put(guid, roomId);
+			}
+		}
+
+		JSONArray tracks = tracksReply.getJSONArray("tracks");
+		int tracksLen = tracks.length();
+		for (int i = 0; i < tracksLen; i++) {
+			JSONObject track = tracks.getJSONObject(i);
+			String guid = track.getString("guid");
+			String name = track.getString("name");
+			String color = track.getString("color");
+			String[] old = oldTracks.remove(guid);
+			if (old == null) {
+				mTrackIds.put(guid, mDb.insertTrack(guid, name, color, mConferenceId));
+				mChanges.getTracks().added(guid);
+			} else {
+				long trackId = Long.parseLong(old[0]);
+				if (!same(old, name, color)) {
+					mDb.updateTrack(trackId, name, color);
+					mChanges.getTracks().updated(guid);
+				}
+				mTrackIds.put(guid, trackId);
+			}
+		}
+
+		JsonArrayReader.read(speakersFile, "speakers", new JsonArrayReader.ElementHandler() {
+			@Override
+			public void element(JSONObject speaker) throws JSONException {
+				String guid = speaker.getString("guid");
+				String name = speaker.getString("name");
+				String company = speaker.getString("company");
+				String biography = speaker.getString("biography");
+				String[] old = oldSpeakers.remove(guid);
+				if (old == null) {
+					mSpeakerIds.put(guid, mDb.insertSpeaker(guid, name, company, biography, "", mConferenceId));
+					mChanges.getSpeakers().added(guid);
+				} else {
+					long speakerId = Long.parseLong(old[0]);
+					if (!same(old, name, company, biography)) {
+						mDb.updateSpeaker(speakerId, name, company, biography);
+						mChanges.getSpeakers().updated(guid);
+					}
+					mSpeakerIds.put(guid, speakerId);
+				}
+			}
+		});
+
+		JsonArrayReader.read(eventsFile, "events", new JsonArrayReader.ElementHandler() {
+			@Override
+			public void element(JSONObject event) throws JSONException {
+				applyEvent(event, oldEvents, oldEventSpeakers);
+			}
+		});
+
+		// Whatever is left over wasn't in the download any more.  Events
+		// go first, since they point at everything else.
+		mDb.deleteEvents(removed(oldEvents, mChanges.getEvents()));
+		mDb.deleteSpeakers(removed(oldSpeakers, mChanges.getSpeakers()));
+		mDb.deleteTracks(removed(oldTracks, mChanges.getTracks()));
+		mDb.deleteRooms(removed(oldRooms, mChanges.getRooms()));
+		if (venueId != oldVenueId && oldVenueId > 0)
+			mDb.deleteVenue(oldVenueId);
+
+		if (!mChanges.getEvents().isEmpty()
+				|| !mChanges.getSpeakers().isEmpty()
+				|| !mChanges.getTracks().isEmpty()) {
+			mDb.updateSearchIndex(mConferenceId);
+			mDb.updateFacets(mConferenceId);
+		}
+		return mChanges;
+	}
+
+	private long applyVenue(JSONObject venue, String info, long oldVenueId) throws JSONException {
+		String guid = venue.getString("guid");
+		String name = venue.getString("name");
+		String address = venue.getString("address");
+		String offlineMap = "";
+		String offlineMapBounds = "";
+		if (venue.has("offline_map")) {
+			offlineMap = venue.getString("offline_map");
+			offlineMapBounds = venue.getString("offline_map_bounds");
+		}
+
+		HashMap<String, String[]> old = new HashMap<String, String[]>();
+		if (oldVenueId > 0) {
+			old = mDb.getRowsByGuid("venues", VENUE_COLUMNS,
+					"_id = ?", new String[] { String.valueOf(oldVenueId) });
+		}
+		String[] row = old.get(guid);
+		long venueId;
+		if (row == null) {
+			venueId = mDb.insertVenue(guid, name, address, offlineMap, offlineMapBounds, info);
+			mDb.setConferenceVenue(venueId, mConferenceId);
+			mChanges.setVenueChanged(true);
+		} else {
+			venueId = oldVenueId;
+			if (!same(row, name, address, offlineMap, offlineMapBounds, info)) {
+				mDb.updateVenue(venueId, name, address, offlineMap, offlineMapBounds, info);
+				mChanges.setVenueChanged(true);
+			}
+			mDb.clearVenueMap(venueId);
+		}
+
+		JSONArray mapPoints = venue.getJSONArray("map_points");
+		int mapLen = mapPoints.length();
+		for (int i = 0; i < mapLen; i++) {
+			JSONObject point = mapPoints.getJSONObject(i);
+			String lat = point.getString("lat");
+			String lon = point.getString("lon");
+			String type = point.getString("type");
+			String pointName = "Unknown Point";
+			String addr = "Unknown Address";
+			String desc = "";
+
+			if (point.has("name")) {
+				pointName = point.getString("name");
+			}
+			if (point.has("address")) {
+				addr = point.getString("address");
+			}
+			if (point.has("description")) {
+				desc = point.getString("description");
+			}
+
+			mDb.insertVenuePoint(venueId, Database.toE6(lat), Database.toE6(lon), type, pointName, addr, desc);
+		}
+
+		if (venue.has("map_polygons")) {
+			JSONArray polygons = venue.getJSONArray("map_polygons");
+			int polygonLen = polygons.length();
+			for (int j = 0; j < polygonLen; j++) {
+				JSONObject polygon = polygons.getJSONObject(j);
+				String polygonName = polygon.getString("name");
+				String label = polygon.getString("label");
+				String lineColorStr = polygon.getString("line_color");
+				String fillColorStr = "#00000000";
+				if (polygon.has("fill_color"))
+					fillColorStr = polygon.getString("fill_color");
+
+				// Each point is a "lon,lat" string
+				JSONArray points = polygon.getJSONArray("points");
+				int pointsLen = points.length();
+				int[] coordinates = new int[pointsLen * 2];
+				for (int k = 0; k < pointsLen; k++) {
+					Database.parsePoint(points.getString(k), coordinates, k);
+				}
+				int lineColor = Color.parseColor(lineColorStr);
+				int fillColor = Color.parseColor(fillColorStr);
+				mDb.insertVenuePolygon(venueId, polygonName, label, lineColor, fillColor, coordinates);
+			}
+		}
+		return venueId;
+	}
+
+	private void applyEvent(JSONObject event,
+							HashMap<String, String[]> oldEvents,
+							HashMap<Long, String> oldEventSpeakers) throws JSONException {
+		String guid = event.getString("guid");
+		String track = event.getString("track");
+		Long trackId = mTrackIds.get(track);
+		Long roomId = mRoomIds.get(event.getString("room"));
+		String date = event.getString("date");
+		int length = event.getInt("length");
+		String title = event.getString("title");
+		String type = "";
+		String language = "";
+		String abs = "";
+		List<Long> speakers = new ArrayList<Long>();
+
+		// The "meta" track is used to insert information
+		// into the schedule that automatically appears on "my schedule",
+		// and also isn't clickable.
+		if (!track.equals("meta")) {
+			type = event.getString("type");
+			language = event.getString("language");
+			abs = event.getString("abstract");
+			JSONArray eventSpeakers = event.getJSONArray("speaker_ids");
+			int eventSpeakersLen = eventSpeakers.length();
+			for (int j = 0; j < eventSpeakersLen; j++) {
+				Long speakerId = mSpeakerIds.get(eventSpeakers.getString(j));
+				if (speakerId != null)
+					speakers.add(speakerId);
+			}
+			Collections.sort(speakers);
+		}
+
+		String[] old = oldEvents.remove(guid);
+		if (old == null) {
+			long eventId = mDb.insertEvent(guid,
+					mConferenceId,
+					roomId.longValue(),
+					trackId.longValue(),
+					date,
+					length,
+					type,
+					language,
+					title,
+					abs,
+					"");
+			if (eventId == -1)
+				return;
+			for (Long speakerId : speakers) {
+				mDb.insertEventSpeaker(speakerId, eventId);
+			}
+			mChanges.getEvents().added(guid);
+			return;
+		}
+
+		long eventId = Long.parseLong(old[0]);
+		String[] values = new String[] {
+				String.valueOf(roomId),
+				String.valueOf(trackId),
+				date,
+				String.valueOf(length),
+				type,
+				language,
+				title,
+				abs
+		};
+		boolean changed = false;
+		if (!same(old, values)) {
+			// An unreadable date keeps the event as it was
+			if (!mDb.updateEvent(eventId, roomId.longValue(), trackId.longValue(), date, length, type, language, title, abs))
+				return;
+			changed = true;
+			if (!TextUtils.equals(old[EVENT_ROOM + 1], values[EVENT_ROOM])
+					|| !TextUtils.equals(old[EVENT_DATE + 1], values[EVENT_DATE])
+					|| !TextUtils.equals(old[EVENT_LENGTH + 1], values[EVENT_LENGTH]))
+				mChanges.moved(guid);
+		}
+
+		String speakerKey = TextUtils.join(",", speakers);
+		String oldSpeakerKey = oldEventSpeakers.get(eventId);
+		if (!speakerKey.equals(oldSpeakerKey == null ? "" : oldSpeakerKey)) {
+			mDb.setEventSpeakers(eventId, speakers);
+			changed = true;
+		}
+		if (changed)
+			mChanges.getEvents().updated(guid);
+	}
+
+	// The _ids of the rows left in old, which are recorded as removed
+	private static List<Long> removed(HashMap<String, String[]> old, ChangeSet.Changes changes) {
+		List<Long> ids = new ArrayList<Long>(old.size());
+		for (Map.Entry<String, String[]> entry : old.entrySet()) {
+			changes.removed(entry.getKey());
+			ids.add(Long.valueOf(entry.getValue()[0]));
+		}
+		return ids;
+	}
+
+	// Whether a stored row (_id first) has the given values
+	private static boolean same(String[] row, String... values) {
+		for (int i = 0; i < values.length; i++) {
+			if (!TextUtils.equals(row[i + 1], values[i]))
+				return false;
+		}
+		return true;
+	}
+}
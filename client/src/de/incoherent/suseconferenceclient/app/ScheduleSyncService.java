@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Matt Barringer <matt@incoherent.de>.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Matt Barringer <matt@incoherent.de> - initial API and implementation
+ ******************************************************************************/
+package de.incoherent.suseconferenceclient.app;
+
+import de.incoherent.suseconferenceclient.R;
+import de.incoherent.suseconferenceclient.SUSEConferences;
+import de.incoherent.suseconferenceclient.activities.HomeActivity;
+import de.incoherent.suseconferenceclient.app.ConferenceCacher.ConferenceCacherProgressListener;
+import de.incoherent.suseconferenceclient.models.ChangeSet;
+import de.incoherent.suseconferenceclient.models.Conference;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+/*
+ * Checks the active conference for schedule updates in the background.
+ * The check itself is only a request for updates.json (usually a 304 from
+ * the HTTP cache); the schedule is only downloaded when the revision has
+ * moved on.
+ *
+ * Checks are made every half hour from the day before the conference until
+ * it ends, and once a day before that.  Once it is over no more are made.
+ * The alarm is inexact so the system can line it up with other apps'
+ * wakeups, and a check is skipped when there is no network, the battery
+ * is low, or the schedule was checked a short while ago anyway.
+ */
+public class ScheduleSyncService extends IntentService {
+	static final String ACTION_SYNC = "de.incoherent.suseconferenceclient.SYNC_SCHEDULE";
+	private static final String ACTION_SCHEDULE = "de.incoherent.suseconferenceclient.SCHEDULE_SYNC";
+
+	private static final long CONFERENCE_INTERVAL = AlarmManager.INTERVAL_HALF_HOUR;
+	private static final long IDLE_INTERVAL = AlarmManager.INTERVAL_DAY;
+	// How long before the first event the frequent checks start
+	private static final long LEAD_TIME = AlarmManager.INTERVAL_DAY;
+	// Battery percentage below which a check is skipped, unless charging
+	private static final int LOW_BATTERY = 15;
+	private static final int NOTIFICATION_ID = 13573;
+
+	// Held from the alarm until the check is done, since the device
+	// can go back to sleep as soon as the receiver returns
+	private static PowerManager.WakeLock sWakeLock = null;
+
+	public ScheduleSyncService() {
+		super("ScheduleSyncService");
+	}
+
+	// Sets (or cancels) the repeating check for the active conference.
+	// Working out how often to check reads the database, so it's done by
+	// the service rather than on the caller's (usually the main) thread.
+	public static void schedule(Context context) {
+		Intent intent = new Intent(context, ScheduleSyncService.class);
+		intent.setAction(ACTION_SCHEDULE);
+		context.startService(intent);
+	}
+
+	// Only sets the alarm if there isn't one, or if what it was set for
+	// has changed; setting it again would push the next check back.
+	private static void arm(Context context) {
+		AlarmManager manager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		Intent intent = new Intent(context, ScheduleAlarmReceiver.class);
+		intent.setAction(ACTION_SYNC);
+		SharedPreferences settings = context.getSharedPreferences("SUSEConferences", 0);
+
+		long conferenceId = getActiveConferenceId(context);
+		long[] span = conferenceId == -1 ? null : SUSEConferences.getDatabase().getScheduleSpan(conferenceId);
+		long interval = getInterval(conferenceId, span);
+		if (interval == 0) {
+			PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_NO_CREATE);
+			if (pendingIntent != null) {
+				Log.d("SUSEConferences", "No schedule checks needed");
+				manager.cancel(pendingIntent);
+				pendingIntent.cancel();
+			}
+			settings.edit().remove("sync_alarm").commit();
+			return;
+		}
+
+		String alarm = conferenceId + "/" + interval;
+		if (span != null)
+			alarm += "/" + span[0] + "/" + span[1];
+		boolean isSet = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null;
+		if (isSet && alarm.equals(settings.getString("sync_alarm", null)))
+			return;
+
+		Log.d("SUSEConferences", "Checking for schedule updates every " + (interval / 60000) + " minutes");
+		PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent, 0);
+		manager.setInexactRepeating(AlarmManager.RTC_WAKEUP,
+									System.currentTimeMillis() + interval,
+									interval,
+									pendingIntent);
+		settings.edit().putString("sync_alarm", alarm).commit();
+	}
+
+	static synchronized void acquireWakeLock(Context context) {
+		if (sWakeLock == null) {
+			PowerManager manager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+			sWakeLock = manager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "SUSEConferences sync");
+			sWakeLock.setReferenceCounted(true);
+		}
+		sWakeLock.acquire();
+	}
+
+	private static synchronized void releaseWakeLock() {
+		if (sWakeLock != null && sWakeLock.isHeld())
+			sWakeLock.release();
+	}
+
+	// 0 if the conference doesn't need checking.  span is the conference's
+	// first and last event, or null if they aren't known.
+	private static long getInterval(long conferenceId, long[] span) {
+		if (conferenceId == -1)
+			return 0;
+		if (span == null)
+			return IDLE_INTERVAL;
+
+		long now = System.currentTimeMillis();
+		if (now > span[1])
+			return 0;
+		else if (now > span[0] - LEAD_TIME)
+			return CONFERENCE_INTERVAL;
+		else
+			return IDLE_INTERVAL;
+	}
+
+	private static long getActiveConferenceId(Context context) {
+		SharedPreferences settings = context.getSharedPreferences("SUSEConferences", 0);
+		return settings.getLong("active_conference", -1);
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		if (ACTION_SCHEDULE.equals(intent.getAction())) {
+			arm(this);
+			return;
+		}
+		// Started by ScheduleAlarmReceiver, which holds the wake lock
+		try {
+			sync();
+			// The conference may have just moved into or out of its
+			// busy days, or ended
+			arm(this);
+		} finally {
+			releaseWakeLock();
+		}
+	}
+
+	private void sync() {
+		long conferenceId = getActiveConferenceId(this);
+		if (conferenceId == -1)
+			return;
+		Database db = SUSEConferences.getDatabase();
+		Conference conference = db.getConference(conferenceId);
+		if (conference == null || !conference.isCached())
+			return;
+
+		if (!hasInternet()) {
+			Log.d("SUSEConferences", "Skipping schedule check, no network");
+			return;
+		}
+		if (isBatteryLow()) {
+			Log.d("SUSEConferences", "Skipping schedule check, battery is low");
+			return;
+		}
+		// Someone asked for a check by hand, or an earlier alarm already ran
+		long sinceLastCheck = System.currentTimeMillis() - ScheduleUpdater.getLastCheckTime(this);
+		long interval = getInterval(conferenceId, db.getScheduleSpan(conferenceId));
+		if (sinceLastCheck >= 0 && sinceLastCheck < interval / 2) {
+			Log.d("SUSEConferences", "Skipping schedule check, last one was " + (sinceLastCheck / 60000) + " minutes ago");
+			return;
+		}
+
+		ScheduleUpdater updater = new ScheduleUpdater(this, db, new ConferenceCacherProgressListener() {
+			@Override
+			public void progress(String progress) {
+			}
+		});
+		long id = updater.update(conference);
+		if (id == ScheduleUpdater.UPDATE_FAILED) {
+			Log.d("SUSEConferences", "Background schedule check failed: " + updater.getLastError());
+		} else if (id != ScheduleUpdater.NO_UPDATE && !updater.getChanges().isEmpty()) {
+			notifyChanges(conference, updater.getChanges());
+		}
+	}
+
+	private void notifyChanges(Conference conference, ChangeSet changes) {
+		Intent notificationIntent = new Intent(this, HomeActivity.class);
+		PendingIntent contentIntent = PendingIntent.getActivity(this, 0, notificationIntent, 0);
+		NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
+				.setSmallIcon(R.drawable.ic_launcher)
+				.setContentTitle(conference.getName() + " schedule updated")
+				.setContentText(changes.getSummary())
+				.setContentIntent(contentIntent)
+				.setAutoCancel(true);
+		NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+		manager.notify(NOTIFICATION_ID, builder.getNotification());
+	}
+
+	private boolean hasInternet() {
+		ConnectivityManager manager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo info = manager.getActiveNetworkInfo();
+		return info != null && info.isConnected();
+	}
+
+	private boolean isBatteryLow() {
+		// ACTION_BATTERY_CHANGED is sticky, so this just reads the last one
+		Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		if (battery == null)
+			return false;
+		int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+		if (status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL)
+			return false;
+		int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+		int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+		if (level < 0 || scale <= 0)
+			return false;
+		return level * 100 / scale < LOW_BATTERY;
+	}
+}
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Matt Barringer <matt@incoherent.de>.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Matt Barringer <matt@incoherent.de> - initial API and implementation
+ ******************************************************************************/
+package de.incoherent.suseconferenceclient.app;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import de.incoherent.suseconferenceclient.activities.ScheduleDetailsActivity;
+import de.incoherent.suseconferenceclient.app.ConferenceCacher.ConferenceCacherProgressListener;
+import de.incoherent.suseconferenceclient.models.ChangeSet;
+import de.incoherent.suseconferenceclient.models.Conference;
+import de.incoherent.suseconferenceclient.models.Event;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/*
+ * Checks a conference's updates.json and, only if the revision has moved
+ * on, downloads the schedule and applies the differences, then fixes up the
+ * alarms of the events that changed.  Used by CheckForUpdatesTask when the
+ * user asks, and by ScheduleSyncService in the background.  Blocks, so
+ * don't call it on the main thread.
+ */
+public class ScheduleUpdater {
+	public static final long UPDATE_FAILED = -1;
+	public static final long NO_UPDATE = 0;
+
+	// Only one update runs at a time, whoever started it
+	private static final Object sLock = new Object();
+
+	private Context mContext;
+	private Database mDb;
+	private ConferenceCacherProgressListener mListener;
+	private String mErrorMessage = "";
+	private ChangeSet mChanges = null;
+
+	public ScheduleUpdater(Context context, Database db, ConferenceCacherProgressListener listener) {
+		this.mContext = context.getApplicationContext();
+		this.mDb = db;
+		this.mListener = listener;
+	}
+
+	public String getLastError() {
+		return mErrorMessage;
+	}
+
+	// What the last update changed, or null if there wasn't one
+	public ChangeSet getChanges() {
+		return mChanges;
+	}
+
+	// When the revision was last checked, by anything
+	public static long getLastCheckTime(Context context) {
+		SharedPreferences settings = context.getSharedPreferences("SUSEConferences", 0);
+		return settings.getLong("last_update_check", 0);
+	}
+
+	// Returns the conference's id if it was updated, NO_UPDATE if it was
+	// already current, or UPDATE_FAILED
+	public long update(Conference conference) {
+		synchronized (sLock) {
+			return doUpdate(conference);
+		}
+	}
+
+	private long doUpdate(Conference conference) {
+		String updatesUrl = conference.getUrl() + "/updates.json";
+		int revisionLevel = mDb.getLastUpdateValue(conference.getSqlId());
+		mChanges = null;
+
+		try {
+			JSONObject updateReply = HTTPWrapper.get(updatesUrl);
+			if (updateReply == null)
+				return NO_UPDATE;
+			int newLevel = updateReply.getInt("revision");
+			SharedPreferences.Editor editor = mContext.getSharedPreferences("SUSEConferences", 0).edit();
+			editor.putLong("last_update_check", System.currentTimeMillis());
+			editor.commit();
+			if (newLevel <= revisionLevel)
+				return NO_UPDATE;
+
+			long id = conference.getSqlId();
+			// Remember the alerts as they were, so only the ones for
+			// events that changed need their alarms replaced
+			HashMap<String, Event> oldAlerts = new HashMap<String, Event>();
+			for (Event e : mDb.getAlertEvents(id)) {
+				oldAlerts.put(e.getGuid(), e);
+			}
+
+			ConferenceCacher cacher = new ConferenceCacher(mListener);
+			ChangeSet changes = cacher.updateConference(conference, mDb, newLevel);
+			mErrorMessage = cacher.getLastError();
+			if (changes == null)
+				return UPDATE_FAILED;
+
+			mChanges = changes;
+			rescheduleAlerts(oldAlerts, mDb.getAlertEvents(id));
+			return id;
+		} catch (IllegalStateException e) {
+			e.printStackTrace();
+			mErrorMessage = e.getLocalizedMessage();
+		} catch (IOException e) {
+			e.printStackTrace();
+			mErrorMessage = e.getLocalizedMessage();
+		} catch (JSONException e) {
+			e.printStackTrace();
+			mErrorMessage = e.getLocalizedMessage();
+		}
+		return UPDATE_FAILED;
+	}
+
+	// Replaces the alarms of alert events whose time, room or title has
+	// changed (the alarm's id is made from them), and cancels the alarms of
+	// events that are gone.  Alarms for events that didn't change are left alone.
+	private void rescheduleAlerts(HashMap<String, Event> oldAlerts, List<Event> newAlerts) {
+		AlarmManager manager = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+		Date currentDate = new Date();
+		for (Event e : newAlerts) {
+			Intent intent = alarmIntent(e);
+			Event old = oldAlerts.remove(e.getGuid());
+			if (old != null) {
+				Intent oldIntent = alarmIntent(old);
+				if (oldIntent.getStringExtra("intentId").equals(intent.getStringExtra("intentId"))
+						&& old.getDate().equals(e.getDate()))
+					continue;
+				Log.d("SUSEConferences", "Removing an alert for " + old.getTitle());
+				cancelAlarm(manager, oldIntent);
+			}
+			if (currentDate.after(e.getDate()))
+				continue;
+			Log.d("SUSEConferences", "Adding an alert for " + e.getTitle());
+			PendingIntent pendingIntent = PendingIntent.getBroadcast(mContext,
+						intent.getStringExtra("intentId").hashCode(),
+						intent, PendingIntent.FLAG_UPDATE_CURRENT);
+			manager.set(AlarmManager.RTC_WAKEUP, e.getDate().getTime() - 300000 , pendingIntent);
+		}
+
+		// Whatever is left was removed from the schedule
+		for (Event old : oldAlerts.values()) {
+			Log.d("SUSEConferences", "Removing an alert for " + old.getTitle());
+			cancelAlarm(manager, alarmIntent(old));
+		}
+	}
+
+	private Intent alarmIntent(Event e) {
+		Intent intent = new Intent(mContext, AlarmReceiver.class);
+		intent.putExtras(ScheduleDetailsActivity.generateAlarmIntentBundle(mContext, e));
+		return intent;
+	}
+
+	private void cancelAlarm(AlarmManager manager, Intent intent) {
+		PendingIntent pendingIntent = PendingIntent.getBroadcast(mContext,
+									intent.getStringExtra("intentId").hashCode(),
+									intent,
+									PendingIntent.FLAG_UPDATE_CURRENT);
+		manager.cancel(pendingIntent);
+		pendingIntent.cancel();
+	}
+}
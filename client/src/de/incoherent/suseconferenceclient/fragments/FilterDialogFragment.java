@@ -35,7 +35,7 @@ import de.incoherent.suseconferenceclient.R;
 import de.incoherent.suseconferenceclient.SUSEConferences;
 import de.incoherent.suseconferenceclient.activities.HomeActivity;
 import de.incoherent.suseconferenceclient.app.Database;
-import de.incoherent.suseconferenceclient.models.Track;
+import de.incoherent.suseconferenceclient.models.Facet;
 
 /*
  * This dialog allows the user to set the languages and
@@ -74,35 +74,32 @@ public class FilterDialogFragment extends SherlockDialogFragment {
 		Set<String> filteredLanguages = getSetFromString(settings.getString(languageSetting, null));
 		Set<String> filteredTrackIds = getSetFromString(settings.getString(trackSetting, null));
 		
+		// The languages and tracks come from the facets table, counted
+		// when the conference was cached.  Each box's tag is the value
+		// that goes into the filter.
 		this.mDb = SUSEConferences.getDatabase();
-		String[] languages = mDb.getUniqueLanguages(conferenceId);
-		int len = languages.length;
-		for (int i = 0; i < len; i++) {
-			String name = languages[i];
-			if (name.length() > 0) {
-				CheckBox box = new CheckBox(getActivity());
-				if (filteredLanguages == null || filteredLanguages.contains(name))
+		boolean hasTracks = false;
+		for (Facet facet : mDb.getFacets(conferenceId)) {
+			String value = facet.getValue();
+			CheckBox box = new CheckBox(getActivity());
+			box.setText(facet.getLabel() + " (" + facet.getEventCount() + ")");
+			box.setTag(value);
+			if (facet.getKind() == Facet.KIND_LANGUAGE && value.length() > 0) {
+				if (filteredLanguages == null || filteredLanguages.contains(value))
 					box.setChecked(true);
-				box.setText(name);
 				languageLayout.addView(box);
+			} else if (facet.getKind() == Facet.KIND_TRACK) {
+				if (filteredTrackIds == null || filteredTrackIds.contains(value))
+					box.setChecked(true);
+				trackLayout.addView(box);
+				hasTracks = true;
 			}
 		}
 		
-		List<Track> trackList = mDb.getUniqueTracks(conferenceId);
-		if (trackList.size() == 0) {
+		if (!hasTracks) {
 			TextView trackView = (TextView) view.findViewById(R.id.tracksTextView);
 			trackView.setVisibility(View.GONE);
 			trackLayout.setVisibility(View.GONE);
-		} else {
-			for (Track t : trackList) {
-				String id = String.valueOf(t.getId());
-				CheckBox box = new CheckBox(getActivity());
-				if (filteredTrackIds == null || filteredTrackIds.contains(id))
-					box.setChecked(true);
-				box.setText(t.getName());
-				box.setId((int) t.getId());
-				trackLayout.addView(box);
-			}
 		}
 		
         builder.setView(view)
@@ -118,7 +115,7 @@ public class FilterDialogFragment extends SherlockDialogFragment {
                 	   for (i = 0; i < boxcount; i++){
                 	         CheckBox box = (CheckBox) languageLayout.getChildAt(i);
                 	         if (box.isChecked()) {
-                	        	 strList.add("\"" + box.getText().toString() + "\"");
+                	        	 strList.add("\"" + box.getTag() + "\"");
                 	         }
                 	   }
                 	   editor.putString(languageSetting, TextUtils.join(",", strList));
@@ -127,7 +124,7 @@ public class FilterDialogFragment extends SherlockDialogFragment {
                 	   for (i = 0; i < boxcount; i++){
                 	         CheckBox box = (CheckBox) trackLayout.getChildAt(i);
                 	         if (box.isChecked()) {
-                	        	 strList.add(String.valueOf(box.getId()));
+                	        	 strList.add((String) box.getTag());
                 	         }
                 	   }
                 	   editor.putString(trackSetting, TextUtils.join(",", strList));
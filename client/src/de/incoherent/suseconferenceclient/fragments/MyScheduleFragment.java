@@ -13,11 +13,11 @@ package de.incoherent.suseconferenceclient.fragments;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
 
 import android.content.Intent;
 import android.os.Bundle;
@@ -31,6 +31,7 @@ import de.incoherent.suseconferenceclient.SUSEConferences;
 import de.incoherent.suseconferenceclient.activities.ScheduleDetailsActivity;
 import de.incoherent.suseconferenceclient.adapters.ScheduleAdapter;
 import de.incoherent.suseconferenceclient.adapters.ScheduleAdapter.ScheduleItem;
+import de.incoherent.suseconferenceclient.app.ConferenceSnapshot;
 import de.incoherent.suseconferenceclient.app.Database;
 import de.incoherent.suseconferenceclient.models.Event;
 import de.incoherent.suseconferenceclient.R;
@@ -81,10 +82,7 @@ public class MyScheduleFragment extends SherlockListFragment {
 	
 	public void onResume() {
 		super.onResume();
-		setItems();
-		if(mIndex!=-1){
-			this.getListView().setSelectionFromTop(mIndex, mTop);
-		}
+		loadSchedule(true);
 		getListView().setFastScrollEnabled(true);
 	}
 	
@@ -92,26 +90,50 @@ public class MyScheduleFragment extends SherlockListFragment {
 		this.mConferenceId = conferenceId;
 		mIndex = -1;
 		mTop = 0;
-		setItems();
+		loadSchedule(false);
 	}
 
 	public void setItems() {
+		loadSchedule(false);
+	}
+
+	// Loading the snapshot can mean reading the whole conference, so it's
+	// done on a reader thread and the list is filled in when it's ready
+	private void loadSchedule(final boolean restorePosition) {
+		final long conferenceId = mConferenceId;
+		db.read(new Callable<ConferenceSnapshot>() {
+			@Override
+			public ConferenceSnapshot call() {
+				return db.getSnapshot(conferenceId);
+			}
+		}, new Database.ResultListener<ConferenceSnapshot>() {
+			@Override
+			public void onResult(ConferenceSnapshot snapshot) {
+				if (snapshot == null || getView() == null || conferenceId != mConferenceId)
+					return;
+				setItems(snapshot);
+				if (restorePosition && mIndex != -1)
+					getListView().setSelectionFromTop(mIndex, mTop);
+			}
+		});
+	}
+
+	private void setItems(ConferenceSnapshot snapshot) {
 		mAdapter = new ScheduleAdapter(getActivity(),
 				false,
 				R.layout.schedule_list_item,
 				getResources().getColor(R.color.dark_suse_green),
 				getResources().getColor(R.color.suse_grey),
-				getScheduleItems());
+				getScheduleItems(snapshot));
 		setListAdapter(mAdapter);
 	}
 	
-	private List<ScheduleItem> getScheduleItems() {
+	private List<ScheduleItem> getScheduleItems(ConferenceSnapshot snapshot) {
 		boolean isEmpty = false;
 		boolean conflict = false;
 
 		List<ScheduleItem> items = new ArrayList<ScheduleItem>();
-		this.mEventList = db.getScheduleTitles(mConferenceId);
-		Collections.sort(mEventList);
+		this.mEventList = snapshot.getEvents();
 
 		if (mEventList.size() > 0) {
 			ScheduleItem newItem = new ScheduleItem(buildHeaderText(mEventList.get(0)), getDayString(mEventList.get(0)));
@@ -11,18 +11,14 @@
 package de.incoherent.suseconferenceclient.fragments;
 
 import java.text.DateFormat;
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Collections;
-import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.List;
-import java.util.TimeZone;
+import java.util.concurrent.Callable;
 
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.util.Log;
+import android.util.Pair;
 import android.view.View;
 import android.widget.ListView;
 
@@ -32,6 +28,7 @@ import de.incoherent.suseconferenceclient.SUSEConferences;
 import de.incoherent.suseconferenceclient.activities.ScheduleDetailsActivity;
 import de.incoherent.suseconferenceclient.adapters.ScheduleAdapter;
 import de.incoherent.suseconferenceclient.adapters.ScheduleAdapter.ScheduleItem;
+import de.incoherent.suseconferenceclient.adapters.ScheduleWindow;
 import de.incoherent.suseconferenceclient.app.Database;
 import de.incoherent.suseconferenceclient.models.Event;
 import de.incoherent.suseconferenceclient.R;
@@ -46,8 +43,6 @@ public class ScheduleFragment extends SherlockListFragment {
 	private Database db;
     private long mConferenceId;
     private String mConferenceName;
-    private List<Event> mEventList;
-    private DateFormat mHeaderFormatter;
     private ScheduleAdapter mAdapter;
     private int mScrollIndex = -1;
     private int mIndex = -1;
@@ -57,48 +52,76 @@ public class ScheduleFragment extends SherlockListFragment {
 		super.onCreate(savedInstanceState);
 	    setRetainInstance(true);
 	    Log.d("SUSEConferences", "Schedule Fragment onCreate");
-		mHeaderFormatter = DateFormat.getDateInstance(DateFormat.LONG);
 		Bundle args = getArguments();
 		this.mConferenceId = args.getLong("conferenceId");
 		this.db = SUSEConferences.getDatabase();
 		this.mConferenceName = args.getString("conferenceName");
 	}
 
-	public List<ScheduleItem> getScheduleItems() {
+	// The full schedule can be thousands of events long, so rather than
+	// building every item up front, the list reads them from the database
+	// as they scroll into view.  Even working out where the days start
+	// takes a query, so the window is built on a reader thread and the
+	// list is filled in once it's ready.
+	private void loadSchedule(final boolean restorePosition) {
         final String languageSetting = mConferenceName + "_language_filter";
         final String trackSetting = mConferenceName + "_track_filter";
 		final SharedPreferences settings = getActivity().getSharedPreferences("SUSEConferences", 0);
-		String trackFilter = settings.getString(trackSetting, null);
-		String languageFilter = settings.getString(languageSetting, null);
+		final String trackFilter = settings.getString(trackSetting, null);
+		final String languageFilter = settings.getString(languageSetting, null);
+		final long conferenceId = mConferenceId;
 
-		this.mEventList = db.getScheduleTitles(mConferenceId, trackFilter, languageFilter);
-
-		List<ScheduleItem> items = new ArrayList<ScheduleItem>();
-		Collections.sort(mEventList);
-		if (mEventList.size() > 0) {
-			Date now = new Date();
-			ScheduleItem newItem = new ScheduleItem(buildHeaderText(mEventList.get(0)), getDayString(mEventList.get(0)));
-			items.add(newItem);
-			Event previousEvent = null;
-			for (Event event : mEventList) {
-				if (previousEvent != null) {
-					if (!sameDay(previousEvent.getDate(), event.getDate(), previousEvent.getTimeZone(), event.getTimeZone())) {
-						ScheduleItem newHeader= new ScheduleItem(buildHeaderText(event), getDayString(event));
-						items.add(newHeader);
-					}
+		// mScrollIndex belongs to the main thread; the reader only works
+		// out the position and hands it back with the window
+		final boolean findPosition = mScrollIndex == -1;
+		db.read(new Callable<Pair<ScheduleWindow, Integer>>() {
+			@Override
+			public Pair<ScheduleWindow, Integer> call() {
+				DateFormat headerFormatter = DateFormat.getDateInstance(DateFormat.LONG);
+				ScheduleWindow window = new ScheduleWindow(db, conferenceId, trackFilter, languageFilter, headerFormatter);
+				int position = -1;
+				if (findPosition) {
+					position = window.getPositionForTime(System.currentTimeMillis());
+					if (position != -1)
+						Log.d("SUSEConferences", "Nearest date match at " + position);
 				}
-				
-				previousEvent = event;
-				ScheduleItem newEvent = new ScheduleItem(event, false);
-				items.add(newEvent);
-				if (mScrollIndex == -1 && (event.getDate().after(now) || eventWithinRange(now, event))) {
-					Log.d("SUSEConferences", "Nearest date match: " + event.getTitle());
-					mScrollIndex = items.size() - 1;
+				return new Pair<ScheduleWindow, Integer>(window, position);
+			}
+		}, new Database.ResultListener<Pair<ScheduleWindow, Integer>>() {
+			@Override
+			public void onResult(Pair<ScheduleWindow, Integer> result) {
+				// Skip it if the fragment has gone away, or a different
+				// conference was loaded in the meantime
+				if (result == null || getView() == null || conferenceId != mConferenceId)
+					return;
+				if (mScrollIndex == -1)
+					mScrollIndex = result.second;
+				setItems(result.first);
+				if (restorePosition && mIndex != -1) {
+					getListView().setSelectionFromTop(mIndex, mTop);
+				} else if (mScrollIndex > 1) {
+					getListView().setSelection(mScrollIndex);
 				}
 			}
-		}
-
-		return items;
+		});
+	}
+	
+	private void setItems(ScheduleWindow window) {
+		mAdapter = new ScheduleAdapter(getActivity(),
+				true,
+				R.layout.schedule_list_item,
+				getResources().getColor(R.color.dark_suse_green),
+				getResources().getColor(R.color.suse_grey),
+				window);
+		window.setPageListener(new ScheduleWindow.PageListener() {
+			@Override
+			public void pageLoaded() {
+				// Swap the placeholder rows for the events
+				if (mAdapter != null)
+					mAdapter.notifyDataSetChanged();
+			}
+		});
+		setListAdapter(mAdapter);
 	}
 	
 	public void onActivityCreated(Bundle savedInstanceState) {
@@ -116,16 +139,7 @@ public class ScheduleFragment extends SherlockListFragment {
 	@Override
 	public void onResume() {
 		super.onResume();
-		mAdapter = new ScheduleAdapter(getActivity(),
-				true,
-				R.layout.schedule_list_item,
-				getResources().getColor(R.color.dark_suse_green),
-				getResources().getColor(R.color.suse_grey),
-				getScheduleItems());
-		setListAdapter(mAdapter);
-		if(mIndex!=-1){
-			this.getListView().setSelectionFromTop(mIndex, mTop);
-		}
+		loadSchedule(true);
 	}
 
 	public void loadNewConference(long conferenceId, String conferenceName) {
@@ -138,15 +152,7 @@ public class ScheduleFragment extends SherlockListFragment {
 	public void requery() {
 		mIndex = -1;
 		mTop = 0;
-		mAdapter = new ScheduleAdapter(getActivity(),
-				true,
-				R.layout.schedule_list_item,
-				getResources().getColor(R.color.dark_suse_green),
-				getResources().getColor(R.color.suse_grey),
-				getScheduleItems());
-		setListAdapter(mAdapter);
-		if (mScrollIndex > 1)
-			getListView().setSelection(mScrollIndex);
+		loadSchedule(false);
 	}
 	
 	@Override
@@ -162,41 +168,13 @@ public class ScheduleFragment extends SherlockListFragment {
 		}
 	}
 	
-	private String buildHeaderText(Event event) {
-		return mHeaderFormatter.format(event.getDate());
-	}
-	
-	private String getDayString(Event e) {
-		Calendar cal = new GregorianCalendar();
-		cal.setTime(e.getDate());
-		return String.valueOf(cal.get(Calendar.DAY_OF_MONTH));
-	}
-	private boolean eventWithinRange(Date now, Event event) {
-		Date start = event.getDate();
-		Date end = event.getEndDate();
-		return !(now.before(start) || now.after(end));
-	}
-	
-	
-	private boolean sameDay(Date day1, Date day2, TimeZone tz1, TimeZone tz2) {
-		Calendar cal1 = Calendar.getInstance();
-		cal1.setTimeZone(tz1);
-		Calendar cal2 = Calendar.getInstance();
-		cal2.setTimeZone(tz2);
-		cal1.setTime(day1);
-		cal2.setTime(day2);
-		boolean sameDay = cal1.get(Calendar.YEAR) == cal2.get(Calendar.YEAR) &&
-				cal1.get(Calendar.DAY_OF_YEAR) == cal2.get(Calendar.DAY_OF_YEAR);
-		return sameDay;
-	}
-	
 	@Override
 	public void onListItemClick (ListView l,
 								 View v,
 								 int position,
 								 long id) {
 		ScheduleItem item = (ScheduleItem) l.getItemAtPosition(position);
-		if (item.isHeader() || item.getEvent().isMetaInformation())
+		if (item.isHeader() || item.isPlaceholder() || item.getEvent().isMetaInformation())
 			return;
 		
 		Intent intent = new Intent(getActivity(), ScheduleDetailsActivity.class);
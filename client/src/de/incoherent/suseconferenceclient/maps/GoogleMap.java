@@ -114,11 +114,10 @@ public class GoogleMap implements AreaZoomListener, MapInterface, GoogleMapEvent
 		}
 
 		for (MapPolygon polygon : venue.getPolygons()) {
-			List<MapPoint> points = polygon.getPoints();
-			GeoPoint[] pathPoints = new GeoPoint[points.size()];
-			for (int i = 0; i < points.size(); i++) {
-				MapPoint point = points.get(i);
-				pathPoints[i] = new GeoPoint(point.getLat(), point.getLon());
+			int pointCount = polygon.getPointCount();
+			GeoPoint[] pathPoints = new GeoPoint[pointCount];
+			for (int i = 0; i < pointCount; i++) {
+				pathPoints[i] = new GeoPoint(polygon.getLat(i), polygon.getLon(i));
 			}
 			GoogleMapPolygonOverlay newOverlay;
 			newOverlay = new GoogleMapPolygonOverlay(pathPoints, polygon.getLineColor(), polygon.getFillColor());
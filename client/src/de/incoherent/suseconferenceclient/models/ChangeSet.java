@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Matt Barringer <matt@incoherent.de>.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Matt Barringer <matt@incoherent.de> - initial API and implementation
+ ******************************************************************************/
+package de.incoherent.suseconferenceclient.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * What a schedule update changed, by guid.  Moved events are the updated
+ * ones whose time or room is different; they are also in the updated list.
+ */
+public class ChangeSet {
+	public static class Changes {
+		private List<String> mAdded = new ArrayList<String>();
+		private List<String> mUpdated = new ArrayList<String>();
+		private List<String> mRemoved = new ArrayList<String>();
+
+		public void added(String guid) {
+			mAdded.add(guid);
+		}
+
+		public void updated(String guid) {
+			mUpdated.add(guid);
+		}
+
+		public void removed(String guid) {
+			mRemoved.add(guid);
+		}
+
+		public List<String> getAdded() {
+			return mAdded;
+		}
+
+		public List<String> getUpdated() {
+			return mUpdated;
+		}
+
+		public List<String> getRemoved() {
+			return mRemoved;
+		}
+
+		public boolean isEmpty() {
+			return mAdded.isEmpty() && mUpdated.isEmpty() && mRemoved.isEmpty();
+		}
+	}
+
+	private Changes mRooms = new Changes();
+	private Changes mTracks = new Changes();
+	private Changes mSpeakers = new Changes();
+	private Changes mEvents = new Changes();
+	private List<String> mMovedEvents = new ArrayList<String>();
+	private boolean mVenueChanged = false;
+
+	public Changes getRooms() {
+		return mRooms;
+	}
+
+	public Changes getTracks() {
+		return mTracks;
+	}
+
+	public Changes getSpeakers() {
+		return mSpeakers;
+	}
+
+	public Changes getEvents() {
+		return mEvents;
+	}
+
+	public void moved(String eventGuid) {
+		mMovedEvents.add(eventGuid);
+	}
+
+	public List<String> getMovedEvents() {
+		return mMovedEvents;
+	}
+
+	public void setVenueChanged(boolean changed) {
+		this.mVenueChanged = changed;
+	}
+
+	public boolean isVenueChanged() {
+		return mVenueChanged;
+	}
+
+	public boolean isEmpty() {
+		return !mVenueChanged
+				&& mRooms.isEmpty()
+				&& mTracks.isEmpty()
+				&& mSpeakers.isEmpty()
+				&& mEvents.isEmpty();
+	}
+
+	// e.g. "2 new events, 3 changed (1 moved), 1 removed"
+	public String getSummary() {
+		if (mEvents.isEmpty())
+			return isEmpty() ? "Nothing changed" : "Venue details updated";
+
+		List<String> parts = new ArrayList<String>();
+		if (!mEvents.getAdded().isEmpty())
+			parts.add(mEvents.getAdded().size() + " new events");
+		if (!mEvents.getUpdated().isEmpty()) {
+			String updated = mEvents.getUpdated().size() + " changed";
+			if (!mMovedEvents.isEmpty())
+				updated += " (" + mMovedEvents.size() + " moved)";
+			parts.add(updated);
+		}
+		if (!mEvents.getRemoved().isEmpty())
+			parts.add(mEvents.getRemoved().size() + " removed");
+
+		StringBuilder summary = new StringBuilder();
+		for (String part : parts) {
+			if (summary.length() > 0)
+				summary.append(", ");
+			summary.append(part);
+		}
+		return summary.toString();
+	}
+}
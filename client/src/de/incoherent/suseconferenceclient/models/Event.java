@@ -42,6 +42,28 @@ public class Event implements Comparable<Event> {
 	public Event() {
 		mSpeakers = new ArrayList<Speaker>();
 	}
+	
+	// Shallow copy; the speakers list is shared with the original
+	public Event(Event other) {
+		mGuid = other.mGuid;
+		mDate = other.mDate;
+		mEndDate = other.mEndDate;
+		mTimeZone = other.mTimeZone;
+		mInMySchedule = other.mInMySchedule;
+		mMetaInformation = other.mMetaInformation;
+		mLength = other.mLength;
+		mLanguage = other.mLanguage;
+		mAbstract = other.mAbstract;
+		mUrlList = other.mUrlList;
+		mEventType = other.mEventType;
+		mTitle = other.mTitle;
+		mTrackName = other.mTrackName;
+		mRoomName = other.mRoomName;
+		mColor = other.mColor;
+		mSpeakers = other.mSpeakers;
+		mSqlId = other.mSqlId;
+		mConferenceId = other.mConferenceId;
+	}
 	public String getTrackName() {
 		return mTrackName;
 	}
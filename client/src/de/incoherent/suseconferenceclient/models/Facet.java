@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (c) 2012 Matt Barringer <matt@incoherent.de>.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Matt Barringer <matt@incoherent.de> - initial API and implementation
+ ******************************************************************************/
+package de.incoherent.suseconferenceclient.models;
+
+/*
+ * A language or track the schedule can be filtered on, with the number
+ * of events that have it.  The value is what the filter stores: the
+ * language itself, or the track's _id.
+ */
+public class Facet {
+	public static final int KIND_LANGUAGE = 0;
+	public static final int KIND_TRACK = 1;
+
+	private int mKind;
+	private String mValue;
+	private String mLabel;
+	private int mEventCount;
+
+	public Facet(int kind, String value, String label, int eventCount) {
+		this.mKind = kind;
+		this.mValue = value;
+		this.mLabel = label;
+		this.mEventCount = eventCount;
+	}
+
+	public int getKind() {
+		return mKind;
+	}
+
+	public String getValue() {
+		return mValue;
+	}
+
+	public String getLabel() {
+		return mLabel;
+	}
+
+	public int getEventCount() {
+		return mEventCount;
+	}
+}
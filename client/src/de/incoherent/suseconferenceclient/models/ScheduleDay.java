@@ -11,20 +11,33 @@
 
 package de.incoherent.suseconferenceclient.models;
 
-public class Track {
-	private long mId;
-	private String mName;
+import java.util.Date;
+import java.util.TimeZone;
+
+/*
+ * One day of the schedule: when its first event starts, and how many
+ * events there are on it
+ */
+public class ScheduleDay {
+	private Date mFirstStart;
+	private TimeZone mTimeZone;
+	private int mEventCount;
+	
+	public ScheduleDay(Date firstStart, TimeZone timeZone, int eventCount) {
+		this.mFirstStart = firstStart;
+		this.mTimeZone = timeZone;
+		this.mEventCount = eventCount;
+	}
 	
-	public Track(long id, String name) {
-		this.mId = id;
-		this.mName = name;
+	public Date getFirstStart() {
+		return mFirstStart;
 	}
 	
-	public long getId() {
-		return mId;
+	public TimeZone getTimeZone() {
+		return mTimeZone;
 	}
 	
-	public String getName() {
-		return mName;
+	public int getEventCount() {
+		return mEventCount;
 	}
 }
@@ -90,11 +90,12 @@ public class Venue {
 	}
 	
 	/*
-	 * MapPolygon represents polygons to be drawn over the map.  Currently
-	 * not used.
+	 * MapPolygon represents polygons to be drawn over the map.  The vertices
+	 * are kept in one array of E6 coordinates, latitude then longitude for
+	 * each point, which is how the database stores them.
 	 */
 	public class MapPolygon {
-		private List<MapPoint> mPoints;
+		private int[] mCoordinates = new int[0];
 		private String mName = "";
 		private String mLabel = "";
 		private int mLineColor, mFillColor;
@@ -104,19 +105,35 @@ public class Venue {
 		}
 		
 		public MapPolygon(String name, String label, int lineColor, int fillColor) {
-			mPoints = new ArrayList<MapPoint>();
 			this.mName = name;
 			this.mLabel = label;
 			this.mLineColor = lineColor;
 			this.mFillColor = fillColor;
 		}
 		
-		public void addPoint(MapPoint point) {
-			mPoints.add(point);
+		public void setCoordinates(int[] coordinates) {
+			mCoordinates = coordinates;
+		}
+		
+		public int getPointCount() {
+			return mCoordinates.length / 2;
+		}
+		
+		public int getLat(int point) {
+			return mCoordinates[point * 2];
+		}
+		
+		public int getLon(int point) {
+			return mCoordinates[point * 2 + 1];
 		}
 		
 		public List<MapPoint> getPoints() {
-			return mPoints;
+			int count = getPointCount();
+			List<MapPoint> points = new ArrayList<MapPoint>(count);
+			for (int i = 0; i < count; i++) {
+				points.add(new MapPoint(MapPoint.TYPE_NONE, getLat(i), getLon(i)));
+			}
+			return points;
 		}
 		
 		public int getLineColor() {
@@ -62,11 +62,9 @@ public class CacheConferenceTask extends AsyncTask<Void, String, Long> {
 		return val;
 	}
 
+	// The cacher marks the conference as cached itself, in the same
+	// transaction as the schedule
 	protected void onPostExecute(Long id) {
-		if (id != -1) {
-			db.setConferenceAsCached(id, 1);
-		}
-		
 		mDialog.dismiss();
 		this.mListener.conferenceCached(id, mErrorMessage);
 	}
@@ -12,9 +12,9 @@
 package de.incoherent.suseconferenceclient.tasks;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -44,52 +44,77 @@ public class GetConferencesTask extends AsyncTask<Void, Void, ArrayList<Conferen
 		Log.d("SUSE Conferences","Wrapper.get mUrl: " + mUrl);
 	}
 	
+	// Merges the downloaded list into the conferences table by guid, and
+	// returns everything in the table.  If the list can't be downloaded
+	// that is just what was already there.
 	@Override
 	protected ArrayList<Conference> doInBackground(Void... params) {
-		JSONObject reply = null;
-		ArrayList<Conference> ret = new ArrayList<Conference>();
-		
 		try {
-			reply = HTTPWrapper.get(mUrl);
-			JSONArray conferences = reply.getJSONArray("conferences");
-			
-			int len = conferences.length();
-			for (int i = 0; i < len; i++) {
-				JSONObject jsonCon = conferences.getJSONObject(i);
-				Conference newCon = new Conference();
-				newCon.setGuid(jsonCon.getString("guid"));
-				newCon.setName(jsonCon.getString("name"));
-				newCon.setDescription(jsonCon.getString("description"));
-				newCon.setYear(jsonCon.getInt("year"));
-				newCon.setName(jsonCon.getString("name"));
-				newCon.setDateRange(jsonCon.getString("date_range"));
-				newCon.setUrl(jsonCon.getString("url"));
-				newCon.setSocialTag(jsonCon.getString("socialtag"));
-				newCon.setIsCached(false);
-				long sqlId = mDb.getConferenceIdFromGuid(newCon.getGuid());
-				if (sqlId == -1) {
-					sqlId = mDb.addConference(newCon);
-					if (jsonCon.has("revision"))
-						mDb.setLastUpdateValue(sqlId, jsonCon.getInt("revision"));
-				}
-				newCon.setSqlId(sqlId);
-				
-				ret.add(newCon);
-			}
+			JSONObject reply = HTTPWrapper.getIfChanged(mUrl);
+			// null means the list hasn't changed since it was last merged
+			if (reply == null && mDb.getConferenceList().isEmpty())
+				reply = HTTPWrapper.get(mUrl);
+			if (reply != null)
+				merge(reply.getJSONArray("conferences"));
 		} catch (IllegalStateException e) {
 			e.printStackTrace();
-		} catch (SocketException e) {
-			e.printStackTrace();
-		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (JSONException e) {
 			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
 		}
-    	try {Thread.sleep(13000);} catch(Exception e){};
 
-		return ret;
+		return new ArrayList<Conference>(mDb.getConferenceList());
+	}
+	
+	// The merge is one transaction on the database's writer thread, so it
+	// can't interleave with a schedule being stored, and two refreshes at
+	// once can't both add the same new conference
+	private void merge(final JSONArray conferences) throws InterruptedException, ExecutionException {
+		mDb.write(new Callable<Void>() {
+			@Override
+			public Void call() throws JSONException {
+				boolean success = false;
+				mDb.beginBulkInsert();
+				try {
+					mergeConferences(conferences);
+					success = true;
+				} finally {
+					mDb.endBulkInsert(success);
+				}
+				return null;
+			}
+		}).get();
+	}
+	
+	private void mergeConferences(JSONArray conferences) throws JSONException {
+		int len = conferences.length();
+		for (int i = 0; i < len; i++) {
+			JSONObject jsonCon = conferences.getJSONObject(i);
+			Conference newCon = new Conference();
+			newCon.setGuid(jsonCon.getString("guid"));
+			newCon.setName(jsonCon.getString("name"));
+			newCon.setDescription(jsonCon.getString("description"));
+			newCon.setYear(jsonCon.getInt("year"));
+			newCon.setDateRange(jsonCon.getString("date_range"));
+			newCon.setUrl(jsonCon.getString("url"));
+			newCon.setSocialTag(jsonCon.getString("socialtag"));
+			long sqlId = mDb.getConferenceIdFromGuid(newCon.getGuid());
+			if (sqlId == -1) {
+				Log.d("SUSEConferences", "New conference: " + newCon.getName());
+				sqlId = mDb.addConference(newCon);
+				if (jsonCon.has("revision"))
+					mDb.setLastUpdateValue(sqlId, jsonCon.getInt("revision"));
+			} else {
+				// The revision is left alone here, it's what tells
+				// CheckForUpdatesTask whether the schedule is current
+				mDb.updateConferenceInfo(sqlId, newCon);
+			}
+		}
 	}
 
 	protected void onPostExecute(ArrayList<Conference> conferences) {
@@ -0,0 +1,81 @@
+#!/usr/bin/env python
+"""A stand-in for the conference API, for trying out the app against
+local files.
+
+    bundle-server.py <root dir> [port] [--no-bundle]
+
+Serves the files under the root directory the way the real server does,
+with an ETag on every reply and a 304 for If-None-Match requests that
+match it.  bundle.json.gz is sent as is, not with Content-Encoding.
+With --no-bundle, requests for bundle.json.gz get a 404, so the app's
+fallback to the separate files can be tried.  Every request is logged,
+to show how many the app made.
+"""
+import hashlib
+import os
+import sys
+
+try:
+    from http.server import BaseHTTPRequestHandler, HTTPServer
+    from socketserver import ThreadingMixIn
+except ImportError:
+    from BaseHTTPServer import BaseHTTPRequestHandler, HTTPServer
+    from SocketServer import ThreadingMixIn
+
+
+class Handler(BaseHTTPRequestHandler):
+    root = "."
+    bundle = True
+
+    def do_GET(self):
+        path = os.path.normpath(self.path.split("?")[0]).lstrip("/")
+        local = os.path.join(self.root, path)
+        if path.startswith("..") or not os.path.isfile(local) \
+                or (not self.bundle and os.path.basename(path) == "bundle.json.gz"):
+            self.reply(404, b"", "text/plain")
+            return
+        with open(local, "rb") as f:
+            body = f.read()
+        etag = '"%s"' % hashlib.md5(body).hexdigest()
+        if self.headers.get("If-None-Match") == etag:
+            self.send_response(304)
+            self.send_header("ETag", etag)
+            self.end_headers()
+            return
+        if path.endswith(".gz"):
+            content_type = "application/gzip"
+        elif path.endswith(".json"):
+            content_type = "application/json"
+        else:
+            content_type = "text/plain; charset=utf-8"
+        self.reply(200, body, content_type, etag)
+
+    def reply(self, code, body, content_type, etag=None):
+        self.send_response(code)
+        self.send_header("Content-Type", content_type)
+        self.send_header("Content-Length", str(len(body)))
+        if etag:
+            self.send_header("ETag", etag)
+        self.end_headers()
+        self.wfile.write(body)
+
+
+class Server(ThreadingMixIn, HTTPServer):
+    daemon_threads = True
+
+
+def main(argv):
+    args = [a for a in argv[1:] if not a.startswith("--")]
+    if len(args) not in (1, 2):
+        sys.stderr.write(__doc__)
+        return 1
+    Handler.root = args[0]
+    Handler.bundle = "--no-bundle" not in argv
+    port = int(args[1]) if len(args) == 2 else 8080
+    print("Serving %s on port %d%s" % (Handler.root, port, "" if Handler.bundle else ", without bundles"))
+    Server(("", port), Handler).serve_forever()
+    return 0
+
+
+if __name__ == "__main__":
+    sys.exit(main(sys.argv))
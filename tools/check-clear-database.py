@@ -0,0 +1,164 @@
+#!/usr/bin/env python
+"""Checks that DatabaseHelper.clearDatabase doesn't leave rows behind.
+
+    check-clear-database.py [path to DatabaseHelper.java] [refreshes]
+
+Runs the app's own SQL in an in-memory SQLite database: the CREATE TABLE
+and CREATE INDEX strings and the DELETE statements of clearDatabase are
+read out of DatabaseHelper.java, so a change there is checked as it is.
+
+Two conferences are cached, then one of them is cleared and cached again
+the given number of times (10 by default).  After every refresh the row
+count of every table has to be what it was after the first caching, and
+the other conference's rows must not have changed.  Exits non-zero, and
+says which table is wrong, if not.
+"""
+import os
+import re
+import sqlite3
+import sys
+
+HELPER = os.path.join(os.path.dirname(os.path.abspath(__file__)), "..", "client", "src",
+                      "de", "incoherent", "suseconferenceclient", "app", "DatabaseHelper.java")
+
+STRING = r'"((?:[^"\\]|\\.)*)"'
+
+
+def literals(expression):
+    return "".join(re.findall(STRING, expression))
+
+
+def method_body(source, signature):
+    start = source.index(signature)
+    start = source.index("{", start) + 1
+    depth = 1
+    i = start
+    while depth:
+        if source[i] == "{":
+            depth += 1
+        elif source[i] == "}":
+            depth -= 1
+        i += 1
+    return source[start:i - 1]
+
+
+def load_schema(source):
+    """The CREATE statements, in the order onCreate runs them."""
+    constants = dict((name, literals(expr)) for name, expr in
+                     re.findall(r'static final String (\w+)\s*=\s*(.*?);\s*\n', source, re.S))
+    statements = []
+    for name in re.findall(r'db\.execSQL\((\w+)\)', method_body(source, "public void onCreate(")):
+        statements.append(constants[name])
+    array = re.search(r'String\[\] indexCreates = \{(.*?)\};', source, re.S).group(1)
+    statements.extend(re.findall(STRING, array))
+    return statements
+
+
+def load_clear(source):
+    """clearDatabase's venue lookup and its deletes, as (sql, parameter) pairs."""
+    body = method_body(source, "public void clearDatabase(SQLiteDatabase db, long conferenceId)")
+    lookup = re.search(r'rawQuery\(' + STRING, body).group(1)
+    deletes = re.findall(r'db\.execSQL\(' + STRING + r',\s*(\w+)\)', body)
+    if not deletes:
+        raise SystemExit("No deletes found in clearDatabase")
+    return lookup, deletes
+
+
+def clear(db, lookup, deletes, conference_id):
+    """What clearDatabase does, in one transaction."""
+    with db:
+        row = db.execute(lookup, (conference_id,)).fetchone()
+        venue_id = row[0] if row and row[0] is not None else -1
+        for sql, parameter in deletes:
+            if parameter == "conference":
+                db.execute(sql, (conference_id,))
+            elif parameter == "venue" and venue_id != -1:
+                db.execute(sql, (venue_id,))
+
+
+def cache(db, conference_id, events=40, speakers=15):
+    """Inserts a conference's schedule the way ConferenceCacher does."""
+    with db:
+        venue = db.execute("INSERT INTO venues (guid, name) VALUES (?, ?)",
+                           ("venue-%d" % conference_id, "Venue")).lastrowid
+        db.execute("UPDATE conferences SET venue_id = ?, is_cached = 1 WHERE _id = ?", (venue, conference_id))
+        rooms = [db.execute("INSERT INTO rooms (guid, venue_id, name) VALUES (?, ?, ?)",
+                            ("room-%d" % i, venue, "Room %d" % i)).lastrowid for i in range(5)]
+        for i in range(3):
+            db.execute("INSERT INTO points (venue_id, name) VALUES (?, ?)", (venue, "Point %d" % i))
+            db.execute("INSERT INTO mapPolygons (venue_id, name) VALUES (?, ?)", (venue, "Polygon %d" % i))
+        tracks = [db.execute("INSERT INTO tracks (guid, conference_id, name) VALUES (?, ?, ?)",
+                             ("track-%d" % i, conference_id, "Track %d" % i)).lastrowid for i in range(4)]
+        people = [db.execute("INSERT INTO speakers (guid, name, conference_id) VALUES (?, ?, ?)",
+                             ("speaker-%d" % i, "Speaker %d" % i, conference_id)).lastrowid
+                  for i in range(speakers)]
+        for i in range(events):
+            event = db.execute("INSERT INTO events (guid, conference_id, room_id, track_id, title, language) "
+                               "VALUES (?, ?, ?, ?, ?, ?)",
+                               ("event-%d" % i, conference_id, rooms[i % len(rooms)],
+                                tracks[i % len(tracks)], "Event %d" % i, "en")).lastrowid
+            for speaker in (people[i % speakers], people[(i + 1) % speakers]):
+                db.execute("INSERT INTO eventSpeakers (speaker_id, event_id) VALUES (?, ?)", (speaker, event))
+            db.execute("INSERT INTO eventsSearch (docid, title) VALUES (?, ?)", (event, "Event %d" % i))
+        db.execute("INSERT INTO facets (conference_id, kind, value) VALUES (?, 0, 'en')", (conference_id,))
+
+
+def counts(db):
+    tables = [name for (name,) in db.execute(
+        "SELECT name FROM sqlite_master WHERE type = 'table' AND sql NOT LIKE 'CREATE VIRTUAL%' "
+        "AND name NOT LIKE 'eventsSearch_%' AND name NOT LIKE 'sqlite_%'")]
+    result = dict((table, db.execute("SELECT COUNT(*) FROM %s" % table).fetchone()[0]) for table in tables)
+    result["eventsSearch"] = db.execute("SELECT COUNT(*) FROM eventsSearch").fetchone()[0]
+    return result
+
+
+def other_rows(db, conference_id):
+    """A fingerprint of everything that belongs to the other conference."""
+    return (db.execute("SELECT COUNT(*), group_concat(_id) FROM events WHERE conference_id = ?",
+                       (conference_id,)).fetchone(),
+            db.execute("SELECT COUNT(*) FROM speakers WHERE conference_id = ?", (conference_id,)).fetchone(),
+            db.execute("SELECT COUNT(*) FROM rooms WHERE venue_id = "
+                       "(SELECT venue_id FROM conferences WHERE _id = ?)", (conference_id,)).fetchone())
+
+
+def main(argv):
+    path = argv[1] if len(argv) > 1 else HELPER
+    refreshes = int(argv[2]) if len(argv) > 2 else 10
+    with open(path) as f:
+        source = f.read()
+
+    db = sqlite3.connect(":memory:")
+    for statement in load_schema(source):
+        db.execute(statement)
+    lookup, deletes = load_clear(source)
+
+    ids = [db.execute("INSERT INTO conferences (guid, name) VALUES (?, ?)", ("c%d" % i, "Conference %d" % i)).lastrowid
+           for i in range(2)]
+    db.commit()
+    for conference_id in ids:
+        cache(db, conference_id)
+    expected = counts(db)
+    other = other_rows(db, ids[1])
+    print("After caching two conferences: %s" % expected)
+
+    failed = False
+    for refresh in range(1, refreshes + 1):
+        clear(db, lookup, deletes, ids[0])
+        cache(db, ids[0])
+        now = counts(db)
+        for table in sorted(expected):
+            if now[table] != expected[table]:
+                print("Refresh %d: %s has %d rows, expected %d" % (refresh, table, now[table], expected[table]))
+                failed = True
+        if other_rows(db, ids[1]) != other:
+            print("Refresh %d: the other conference's rows changed" % refresh)
+            failed = True
+
+    if failed:
+        return 1
+    print("%d refreshes, %d deletes: no rows leaked" % (refreshes, len(deletes)))
+    return 0
+
+
+if __name__ == "__main__":
+    sys.exit(main(sys.argv))
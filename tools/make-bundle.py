@@ -0,0 +1,67 @@
+#!/usr/bin/env python
+"""Builds bundle.json.gz for a conference from its separate API files.
+
+    make-bundle.py <conference dir> [output file]
+
+The conference directory is the one the app fetches venue.json,
+rooms.json, tracks.json, speakers.json, events.json and the venue's info
+text from.  The bundle is written next to them unless an output file is
+given, and is a gzipped JSON object of the form
+
+    {"bundle_version": 1,
+     "venue": {...}, "venue_info": "...",
+     "rooms": [...], "tracks": [...], "speakers": [...], "events": [...]}
+
+where venue, rooms, tracks, speakers and events are what the separate
+files hold under the same names, and venue_info is the info text.  The
+speakers and events come last so the app can read everything else first.
+
+The output only changes when the input does, so the ETag the web server
+gives it stays the same between runs.
+"""
+import gzip
+import io
+import json
+import os
+import sys
+
+BUNDLE_VERSION = 1
+
+
+def load(directory, name):
+    with io.open(os.path.join(directory, name), encoding="utf-8") as f:
+        return json.load(f)
+
+
+def make_bundle(directory):
+    venue = load(directory, "venue.json")["venue"]
+    with io.open(os.path.join(directory, venue["info_text"]), encoding="utf-8") as f:
+        info = f.read()
+    # Key order matters, see above
+    return (('{"bundle_version": %d' % BUNDLE_VERSION)
+            + ', "venue": ' + json.dumps(venue)
+            + ', "venue_info": ' + json.dumps(info)
+            + ', "rooms": ' + json.dumps(load(directory, "rooms.json")["rooms"])
+            + ', "tracks": ' + json.dumps(load(directory, "tracks.json")["tracks"])
+            + ', "speakers": ' + json.dumps(load(directory, "speakers.json")["speakers"])
+            + ', "events": ' + json.dumps(load(directory, "events.json")["events"])
+            + '}')
+
+
+def main(argv):
+    if len(argv) not in (2, 3):
+        sys.stderr.write(__doc__)
+        return 1
+    directory = argv[1]
+    output = argv[2] if len(argv) == 3 else os.path.join(directory, "bundle.json.gz")
+    body = make_bundle(directory).encode("utf-8")
+    # A fixed mtime and no file name keep the output reproducible
+    with open(output, "wb") as raw:
+        with gzip.GzipFile(filename="", mode="wb", compresslevel=9, fileobj=raw, mtime=0) as f:
+            f.write(body)
+    print("%s: %d bytes, %d gzipped" % (output, len(body), os.path.getsize(output)))
+    return 0
+
+
+if __name__ == "__main__":
+    sys.exit(main(sys.argv))